@@ -29,6 +29,10 @@ public abstract class AbstractAdapter<K> {
         // (but used as a signal that existing violations is okay in BBST series)
         return 1;
     }
+    public long getOffHeapBytes() {
+        // memory the structure holds outside the java heap
+        return 0;
+    }
     public abstract boolean add(final K key, final Random rng);
     public boolean add(final K key, final Random rng, final int[] metrics) {
         return add(key, rng);
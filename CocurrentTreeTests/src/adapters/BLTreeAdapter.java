@@ -1,17 +1,70 @@
 package adapters;
 
 import algorithms.bltree.BLTreeMap;
+import algorithms.bltree.ChangeStream;
 import main.support.BBSTInterface;
 import main.Globals;
 import main.support.KSTNode;
+import main.support.OperationInterface;
 import main.support.OperationListener;
 import main.support.Random;
 import java.util.*;
 import org.deuce.transform.Exclude;
 
 @Exclude
-public class BLTreeAdapter<K extends Comparable<K>> extends AbstractAdapter<K> implements BBSTInterface<K> {
-    final BLTreeMap<K,K> tree = new BLTreeMap<>();
+public class BLTreeAdapter<K extends Comparable<K>> extends AbstractAdapter<K> implements BBSTInterface<K>, AutoCloseable {
+    private static final long MAINTENANCE_PERIOD_MILLIS = 10;
+    private static final double MAINTENANCE_CPU_BUDGET = 0.5;
+    private static final int LISTENER_BATCH = 1024;
+    private static final long LISTENER_WAIT_NANOS = 1000000;
+
+    /** The types of the operations handed to a listener. */
+    public static final int PUT = 1, REMOVE = 2, CLEAR = 3;
+
+    final BLTreeMap<K,K> tree;
+    private final List<ListenerThread<K>> listeners = new ArrayList<>();
+
+    public BLTreeAdapter() {
+        this("");
+    }
+
+    /**
+     * param is a '+' separated list of options: "index" (INDEX_VALUES),
+     * "lazy" (LAZY_REMOVAL), "recycle" (RECYCLE_NODES), "eliminate"
+     * (ELIMINATION), "combine" (FLAT_COMBINING), "finger" (FINGER_SEARCH),
+     * "hash" (HASH_INDEX), "changes" (CHANGE_STREAM) and "maintain"
+     * (background maintenance thread).
+     */
+    public BLTreeAdapter(final String param) {
+        tree = new BLTreeMap<>(parseOptions(param));
+        if (Arrays.asList(param.split("\\+")).contains("maintain")) {
+            tree.startMaintenance(MAINTENANCE_PERIOD_MILLIS, MAINTENANCE_CPU_BUDGET);
+        }
+    }
+
+    /**
+     * The BLTreeMap options in a '+' separated list; "maintain" is accepted
+     * but is not a map option.
+     */
+    static int parseOptions(final String param) {
+        int options = 0;
+        for (String option : param.split("\\+")) {
+            switch (option) {
+                case "": break;
+                case "index": options |= BLTreeMap.INDEX_VALUES; break;
+                case "lazy": options |= BLTreeMap.LAZY_REMOVAL; break;
+                case "recycle": options |= BLTreeMap.RECYCLE_NODES; break;
+                case "eliminate": options |= BLTreeMap.ELIMINATION; break;
+                case "combine": options |= BLTreeMap.FLAT_COMBINING; break;
+                case "finger": options |= BLTreeMap.FINGER_SEARCH; break;
+                case "hash": options |= BLTreeMap.HASH_INDEX; break;
+                case "changes": options |= BLTreeMap.CHANGE_STREAM; break;
+                case "maintain": break;
+                default: throw new IllegalArgumentException("unknown BLTree option " + option);
+            }
+        }
+        return options;
+    }
 
     @Override
     public final boolean contains(final K key) {
@@ -55,8 +108,20 @@ public class BLTreeAdapter<K extends Comparable<K>> extends AbstractAdapter<K> i
         return result;
     }
 
+    /**
+     * Requires the "changes" option. The listener is told of every change
+     * after it has occurred, by a thread of its own that reads the change
+     * stream in batches, so the updating threads never call it;
+     * operationWillOccur is not called. A listener that throws is dropped,
+     * and so is one that falls so far behind that the stream overwrites
+     * changes it has not been told of.
+     */
     public final void addListener(final OperationListener l) {
-
+        ListenerThread<K> thread = new ListenerThread<>(tree.changes().subscribe(), l, listeners);
+        synchronized (listeners) {
+            listeners.add(thread);
+        }
+        thread.start();
     }
 
     public final int size() {
@@ -68,10 +133,107 @@ public class BLTreeAdapter<K extends Comparable<K>> extends AbstractAdapter<K> i
     }
 
     public final int getSumOfDepths() {
-        return 0;
+        return (int) Math.min(Integer.MAX_VALUE, tree.getSumOfDepths());
     }
 
     public final int sequentialSize() {
         return tree.size();
     }
+
+    @Override
+    public void close() {
+        tree.stopMaintenance();
+        // a listener thread removes itself from listeners as it ends, so it
+        // is joined without holding the list
+        final List<ListenerThread<K>> stopping;
+        synchronized (listeners) {
+            stopping = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (ListenerThread<K> thread : stopping) thread.interrupt();
+        boolean interrupted = false;
+        for (ListenerThread<K> thread : stopping) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Exclude
+    private static final class ListenerThread<K> extends Thread implements ChangeStream.Handler<K,K> {
+        private final ChangeStream<K,K>.Subscription subscription;
+        private final OperationListener listener;
+        private final List<ListenerThread<K>> listeners;
+
+        ListenerThread(final ChangeStream<K,K>.Subscription subscription, final OperationListener listener,
+                final List<ListenerThread<K>> listeners) {
+            super("BLTreeAdapter-listener");
+            setDaemon(true);
+            this.subscription = subscription;
+            this.listener = listener;
+            this.listeners = listeners;
+        }
+
+        /**
+         * Runs until interrupted, or until the listener throws or falls
+         * behind, which drops it quietly.
+         */
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    subscription.poll(this, LISTENER_BATCH, LISTENER_WAIT_NANOS);
+                }
+            } catch (RuntimeException e) {
+                // dropped, as addListener documents
+            } finally {
+                subscription.close();
+                synchronized (listeners) {
+                    listeners.remove(this);
+                }
+            }
+        }
+
+        @Override
+        public void onChange(final long sequence, final K key, final K value) {
+            try {
+                listener.operationHasOccurred(new Change(key == null ? CLEAR : value == null ? REMOVE : PUT, key));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void onLoss(final long from, final long to) {
+            throw new IllegalStateException("listener missed changes " + from + " to " + (to - 1));
+        }
+    }
+
+    @Exclude
+    private static final class Change implements OperationInterface {
+        private final int type;
+        private final Object key;
+
+        Change(final int type, final Object key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public Object getSubtreeKey() {
+            return key;
+        }
+    }
 }
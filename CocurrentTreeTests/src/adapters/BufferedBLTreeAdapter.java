@@ -0,0 +1,105 @@
+package adapters;
+
+import algorithms.bltree.BLTreeMap;
+import algorithms.bltree.BufferedBLTreeMap;
+import main.support.BBSTInterface;
+import main.Globals;
+import main.support.KSTNode;
+import main.support.OperationListener;
+import main.support.Random;
+import java.util.*;
+import org.deuce.transform.Exclude;
+
+@Exclude
+public class BufferedBLTreeAdapter<K extends Comparable<K>> extends AbstractAdapter<K> implements BBSTInterface<K>, AutoCloseable {
+    final BufferedBLTreeMap<K,K> tree;
+
+    public BufferedBLTreeAdapter() {
+        this("");
+    }
+
+    /**
+     * param is the capacity of each thread's write buffer, empty for the
+     * default.
+     */
+    public BufferedBLTreeAdapter(final String param) {
+        final int capacity = param.isEmpty() ? BufferedBLTreeMap.DEFAULT_CAPACITY : Integer.parseInt(param);
+        tree = new BufferedBLTreeMap<>(new BLTreeMap<K,K>(), capacity);
+    }
+
+    @Override
+    public final boolean contains(final K key) {
+        return tree.containsKey(key);
+    }
+
+    @Override
+    public final boolean add(final K key, final Random rng) {
+        tree.put(key, key);
+        return true;
+    }
+
+    @Override
+    public final K get(final K key) {
+        return tree.get(key);
+    }
+
+    /**
+     * Always true: a buffered remove cannot tell whether the key was present.
+     */
+    @Override
+    public final boolean remove(final K key, final Random rng) {
+        tree.remove(key);
+        return true;
+    }
+
+    @Override
+    public final int rangeQuery(final K lo, final K hi, final int rangeSize, final Random rng) {
+        Iterator<Map.Entry<K,K>> iter = tree.entryIterator(lo, hi);
+        ArrayList<K> copy = new ArrayList<>();
+        while (iter.hasNext())
+            copy.add(iter.next().getKey());
+        return copy.size();
+    }
+
+    @Override
+    public final Object partialSnapshot(final int size, final Random rng) {
+        assert size == Globals.DEFAULT_RQ_SIZE;
+        tree.flush();
+        final Object[] result = new Object[size];
+        final Iterator it = tree.tree().keySet().iterator();
+        int i = 0;
+        while (i < size && it.hasNext()) {
+            result[i++] = it.next();
+        }
+        return result;
+    }
+
+    public final void addListener(final OperationListener l) {
+
+    }
+
+    /**
+     * Merges every thread's buffer first, so the size counts all writes.
+     */
+    public final int size() {
+        tree.flushAll();
+        return tree.size();
+    }
+
+    public final KSTNode<K> getRoot() {
+        return null;
+    }
+
+    public final int getSumOfDepths() {
+        return (int) Math.min(Integer.MAX_VALUE, tree.tree().getSumOfDepths());
+    }
+
+    public final int sequentialSize() {
+        return size();
+    }
+
+    @Override
+    public void close() {
+        tree.flushAll();
+    }
+}
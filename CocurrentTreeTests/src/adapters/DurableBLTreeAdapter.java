@@ -0,0 +1,130 @@
+package adapters;
+
+import algorithms.bltree.BLTreeMap;
+import algorithms.bltree.Codec;
+import algorithms.bltree.DurableBLTreeMap;
+import algorithms.bltree.DurableBLTreeMap.SyncPolicy;
+import main.support.BBSTInterface;
+import main.Globals;
+import main.support.KSTNode;
+import main.support.OperationListener;
+import main.support.Random;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import org.deuce.transform.Exclude;
+
+@Exclude
+public class DurableBLTreeAdapter<K extends Comparable<K>> extends AbstractAdapter<K> implements BBSTInterface<K>, AutoCloseable {
+    private static final long DEFAULT_PERIOD_MILLIS = 10;
+
+    final DurableBLTreeMap<K,K> tree;
+    private final Path file;
+
+    public DurableBLTreeAdapter() {
+        this("");
+    }
+
+    /**
+     * param is the sync policy: "sync" (EVERY_WRITE, the default),
+     * "periodic[N]" (PERIODIC) or "os[N]" (OS), where N is the flush period in
+     * milliseconds. Keys must be Integers. The log goes to a temporary file
+     * that is deleted on close.
+     */
+    public DurableBLTreeAdapter(final String param) {
+        SyncPolicy policy;
+        String period;
+        if (param.isEmpty() || param.equals("sync")) {
+            policy = SyncPolicy.EVERY_WRITE;
+            period = "";
+        } else if (param.startsWith("periodic")) {
+            policy = SyncPolicy.PERIODIC;
+            period = param.substring("periodic".length());
+        } else if (param.startsWith("os")) {
+            policy = SyncPolicy.OS;
+            period = param.substring("os".length());
+        } else {
+            throw new IllegalArgumentException("unknown sync policy " + param);
+        }
+        try {
+            file = Files.createTempFile("bltree", ".wal");
+            tree = new DurableBLTreeMap<>(new BLTreeMap<K,K>(), file, (Codec<K>) Codec.INTEGER, (Codec<K>) Codec.INTEGER,
+                    policy, period.isEmpty() ? DEFAULT_PERIOD_MILLIS : Long.parseLong(period));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public final boolean contains(final K key) {
+        return tree.containsKey(key);
+    }
+
+    @Override
+    public final boolean add(final K key, final Random rng) {
+        tree.put(key, key);
+        return true;
+    }
+
+    @Override
+    public final K get(final K key) {
+        return tree.get(key);
+    }
+
+    @Override
+    public final boolean remove(final K key, final Random rng) {
+        return tree.remove(key) != null;
+    }
+
+    @Override
+    public final int rangeQuery(final K lo, final K hi, final int rangeSize, final Random rng) {
+        Iterator<Map.Entry<K,K>> iter = tree.entryIterator(lo, hi);
+        ArrayList<K> copy = new ArrayList<>();
+        while (iter.hasNext())
+            copy.add(iter.next().getKey());
+        return copy.size();
+    }
+
+    @Override
+    public final Object partialSnapshot(final int size, final Random rng) {
+        assert size == Globals.DEFAULT_RQ_SIZE;
+        final Object[] result = new Object[size];
+        final Iterator it = tree.tree().keySet().iterator();
+        int i = 0;
+        while (i < size && it.hasNext()) {
+            result[i++] = it.next();
+        }
+        return result;
+    }
+
+    public final void addListener(final OperationListener l) {
+
+    }
+
+    public final int size() {
+        return tree.size();
+    }
+
+    public final KSTNode<K> getRoot() {
+        return null;
+    }
+
+    public final int getSumOfDepths() {
+        return (int) Math.min(Integer.MAX_VALUE, tree.tree().getSumOfDepths());
+    }
+
+    public final int sequentialSize() {
+        return tree.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            tree.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
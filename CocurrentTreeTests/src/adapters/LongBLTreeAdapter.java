@@ -0,0 +1,82 @@
+package adapters;
+
+import algorithms.bltree.LongBLTreeMap;
+import main.support.BBSTInterface;
+import main.Globals;
+import main.support.KSTNode;
+import main.support.OperationListener;
+import main.support.Random;
+import java.util.*;
+import org.deuce.transform.Exclude;
+
+@Exclude
+public class LongBLTreeAdapter<K extends Number> extends AbstractAdapter<K> implements BBSTInterface<K>, AutoCloseable {
+    final LongBLTreeMap tree = new LongBLTreeMap();
+
+    @Override
+    public final boolean contains(final K key) {
+        return tree.containsKey(key.longValue());
+    }
+
+    @Override
+    public final boolean add(final K key, final Random rng) {
+        tree.put(key.longValue(), key.longValue());
+        return true;
+    }
+
+    /**
+     * Every key is mapped to itself, so the key is the value.
+     */
+    @Override
+    public final K get(final K key) {
+        return tree.containsKey(key.longValue()) ? key : null;
+    }
+
+    @Override
+    public final boolean remove(final K key, final Random rng) {
+        return tree.remove(key.longValue());
+    }
+
+    @Override
+    public final int rangeQuery(final K lo, final K hi, final int rangeSize, final Random rng) {
+        return tree.count(lo.longValue(), hi.longValue());
+    }
+
+    @Override
+    public final Object partialSnapshot(final int size, final Random rng) {
+        assert size == Globals.DEFAULT_RQ_SIZE;
+        final long[] result = new long[size];
+        final int copied = tree.keys(Long.MIN_VALUE, Long.MAX_VALUE, result);
+        return Arrays.copyOf(result, copied);
+    }
+
+    public final void addListener(final OperationListener l) {
+
+    }
+
+    public final int size() {
+        return tree.size();
+    }
+
+    public final KSTNode<K> getRoot() {
+        return null;
+    }
+
+    public final int getSumOfDepths() {
+        return (int) Math.min(Integer.MAX_VALUE, tree.getSumOfDepths());
+    }
+
+    public final int sequentialSize() {
+        return tree.size();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return tree.offHeapBytes();
+    }
+
+    @Override
+    public void close() {
+        tree.close();
+    }
+}
@@ -0,0 +1,110 @@
+package adapters;
+
+import algorithms.bltree.PartitionedBLTreeMap;
+import main.support.BBSTInterface;
+import main.Globals;
+import main.support.KSTNode;
+import main.support.OperationListener;
+import main.support.Random;
+import java.util.*;
+import org.deuce.transform.Exclude;
+
+@Exclude
+public class PartitionedBLTreeAdapter extends AbstractAdapter<Integer> implements BBSTInterface<Integer>, AutoCloseable {
+    private static final long REBALANCE_PERIOD_MILLIS = 10;
+    private static final int MAX_SHARDS_PER_PROCESSOR = 4;
+
+    final PartitionedBLTreeMap<Integer,Integer> tree;
+
+    /**
+     * param is the number of shards, by default the number of processors,
+     * optionally followed by '+' separated BLTreeAdapter options for the
+     * shards, e.g. "8+lazy". The key range [1, maxkey] is split evenly, which
+     * matches the uniform keys of the harness. The option "adapt" starts a
+     * rebalancing thread that splits hot shards and merges cold ones.
+     */
+    public PartitionedBLTreeAdapter(final String param, final int maxkey) {
+        final String[] parts = param.split("\\+", 2);
+        final boolean hasCount = !parts[0].isEmpty() && Character.isDigit(parts[0].charAt(0));
+        final int shards = hasCount ? Integer.parseInt(parts[0]) : Runtime.getRuntime().availableProcessors();
+        final List<String> options = new ArrayList<>(Arrays.asList((hasCount ? (parts.length > 1 ? parts[1] : "") : param).split("\\+")));
+        if (options.contains("maintain")) throw new IllegalArgumentException("maintain is not supported for partitioned trees");
+        final boolean adapt = options.remove("adapt");
+        final Integer[] bounds = new Integer[Math.max(0, Math.min(shards, maxkey) - 1)];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = 1 + (int) ((long) maxkey * (i + 1) / (bounds.length + 1));
+        }
+        tree = new PartitionedBLTreeMap<>(bounds, BLTreeAdapter.parseOptions(String.join("+", options)));
+        if (adapt) {
+            final int maxShards = MAX_SHARDS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+            tree.startRebalancing(REBALANCE_PERIOD_MILLIS, Math.max(maxShards, tree.shardCount()));
+        }
+    }
+
+    @Override
+    public final boolean contains(final Integer key) {
+        return tree.containsKey(key);
+    }
+
+    @Override
+    public final boolean add(final Integer key, final Random rng) {
+        tree.put(key, key);
+        return true;
+    }
+
+    @Override
+    public final Integer get(final Integer key) {
+        return tree.get(key);
+    }
+
+    @Override
+    public final boolean remove(final Integer key, final Random rng) {
+        return tree.remove(key) != null;
+    }
+
+    @Override
+    public final int rangeQuery(final Integer lo, final Integer hi, final int rangeSize, final Random rng) {
+        Iterator<Map.Entry<Integer,Integer>> iter = tree.entryIterator(lo, hi);
+        ArrayList<Integer> copy = new ArrayList<>();
+        while (iter.hasNext())
+            copy.add(iter.next().getKey());
+        return copy.size();
+    }
+
+    @Override
+    public final Object partialSnapshot(final int size, final Random rng) {
+        assert size == Globals.DEFAULT_RQ_SIZE;
+        final Object[] result = new Object[size];
+        final Iterator it = tree.keySet().iterator();
+        int i = 0;
+        while (i < size && it.hasNext()) {
+            result[i++] = it.next();
+        }
+        return result;
+    }
+
+    public final void addListener(final OperationListener l) {
+
+    }
+
+    public final int size() {
+        return tree.size();
+    }
+
+    public final KSTNode<Integer> getRoot() {
+        return null;
+    }
+
+    public final int getSumOfDepths() {
+        return (int) Math.min(Integer.MAX_VALUE, tree.getSumOfDepths());
+    }
+
+    public final int sequentialSize() {
+        return tree.size();
+    }
+
+    @Override
+    public void close() {
+        tree.stopRebalancing();
+    }
+}
@@ -0,0 +1,67 @@
+package algorithms.bltree;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * A CompletableFuture front end for a BLTreeMap, for callers that must not
+ * block. A get, and a put or remove that gets through within INLINE_ATTEMPTS
+ * searches, run on the calling thread and return a completed future, so the
+ * common case costs no hand-off. An update that keeps failing validation on
+ * a contended node, and every transaction, which may retry without bound,
+ * finishes on the executor instead.
+ *
+ * BLTreeMap locks its nodes with CAS and parks when it has to wait, so on
+ * Java 21 a virtual thread can call the map directly without pinning its
+ * carrier, and an executor of virtual threads, such as
+ * Executors.newVirtualThreadPerTaskExecutor(), is a good fit for the
+ * updates handed off here. The default is the common fork join pool.
+ */
+public class AsyncBLTreeMap<K extends Comparable<K>,V> {
+    public static final int INLINE_ATTEMPTS = 4;
+
+    private final BLTreeMap<K,V> tree;
+    private final Executor executor;
+
+    public AsyncBLTreeMap(BLTreeMap<K,V> tree)
+    {
+        this(tree, ForkJoinPool.commonPool());
+    }
+
+    public AsyncBLTreeMap(BLTreeMap<K,V> tree, Executor executor)
+    {
+        if(tree == null || executor == null) throw new NullPointerException();
+        this.tree = tree;
+        this.executor = executor;
+    }
+
+    public BLTreeMap<K,V> tree() {
+        return tree;
+    }
+
+    public CompletableFuture<V> get(K key) {
+        return CompletableFuture.completedFuture(tree.get(key));
+    }
+
+    public CompletableFuture<Boolean> containsKey(K key) {
+        return CompletableFuture.completedFuture(tree.containsKey(key));
+    }
+
+    public CompletableFuture<V> put(K key, V value) {
+        V oldValue = tree.tryPut(key, value, INLINE_ATTEMPTS);
+        if(!BLTreeMap.isContended(oldValue)) return CompletableFuture.completedFuture(oldValue);
+        return CompletableFuture.supplyAsync(() -> tree.put(key, value), executor);
+    }
+
+    public CompletableFuture<V> remove(K key) {
+        V oldValue = tree.tryRemove(key, INLINE_ATTEMPTS);
+        if(!BLTreeMap.isContended(oldValue)) return CompletableFuture.completedFuture(oldValue);
+        return CompletableFuture.supplyAsync(() -> tree.remove(key), executor);
+    }
+
+    public CompletableFuture<Void> transaction(Consumer<BLTreeMap<K,V>.Transaction> body) {
+        return CompletableFuture.runAsync(() -> tree.transaction(body), executor);
+    }
+}
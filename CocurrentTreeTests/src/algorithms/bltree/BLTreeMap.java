@@ -1,33 +1,154 @@
 package algorithms.bltree;
 
+import algorithms.bronson.snaptree.Epoch;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
-    private final TreeNode root;
+    /**
+     * Keeps a value to keys index next to the tree, so that containsValue and
+     * keysForValue are hash lookups instead of a scan that marks the whole tree.
+     */
+    public static final int INDEX_VALUES = 1;
+    /**
+     * remove() only replaces the node's value with a tombstone and leaves the
+     * node in place as a routing node, so it needs neither the parent lock nor
+     * the successor walk, and the shape of the tree does not change. Tombstoned
+     * nodes are unlinked in batches by {@link #purgeRemoved()}.
+     */
+    public static final int LAZY_REMOVAL = 2;
+    /**
+     * Unlinked nodes are reused by later inserts instead of being left to the
+     * GC. A node goes back to a per-thread pool only after every operation
+     * that could still reach it has left its {@link Epoch}.
+     */
+    public static final int RECYCLE_NODES = 4;
+    /**
+     * An update that keeps failing validation waits briefly in an exchange
+     * array for a concurrent update of the same key, and the two are applied
+     * as one: see {@link Elimination}.
+     */
+    public static final int ELIMINATION = 8;
+    /**
+     * Updates are published in per-thread slots and applied in key order by
+     * whichever thread holds the combiner lock: see {@link Combiner}. Takes
+     * precedence over ELIMINATION.
+     */
+    public static final int FLAT_COMBINING = 16;
+    /**
+     * Every thread keeps the path of its previous search in a {@link Finger},
+     * and its next lookup or update resumes from the deepest node on that
+     * path whose key range still holds the key instead of from the root. Pays
+     * off when threads work through runs of neighbouring keys.
+     */
+    public static final int FINGER_SEARCH = 32;
+    /**
+     * Keeps a key to node hash index next to the tree, updated under the same
+     * locks as the tree itself, so that get and containsKey read the node
+     * straight from the index instead of descending. Costs a hash entry per
+     * key and a hash update per insert and unlink, and needs keys whose
+     * equals agrees with compareTo.
+     */
+    public static final int HASH_INDEX = 64;
+    /**
+     * Publishes every put, remove and clear to a {@link ChangeStream} of
+     * CHANGE_STREAM_CAPACITY changes, see {@link #changes()}.
+     */
+    public static final int CHANGE_STREAM = 128;
+    public static final int CHANGE_STREAM_CAPACITY = 1 << 16;
+    /**
+     * Allows {@link #put(Comparable, Object, long, TimeUnit)}, which gives an
+     * entry a time to live. The expiry time is kept in the node, so an
+     * expired entry is invisible to reads at once, and in a time-ordered
+     * index, from which {@link #purgeExpired()} takes only the entries that
+     * are due. size() counts an expired entry until it is purged, and so do
+     * containsValue and keysForValue under INDEX_VALUES.
+     */
+    public static final int EXPIRY = 256;
+
+    private static final Object TOMBSTONE = new Object();
+    private static final Object CONTENDED = new Object();
+    private static final int UNBOUNDED = -1;
+    private static final int PURGE_BATCH = 64;
+    private static final int PURGE_SCAN = 4 * PURGE_BATCH;
+    private static final long NEVER = 0;
+    private static final long ANY_EXPIRY = Long.MIN_VALUE;
+
+    private final TreeNode<K,V> root;
+    private final ConcurrentHashMap<V, Set<K>> valueIndex;
+    private final ConcurrentHashMap<K, TreeNode<K,V>> nodeIndex;
+    /** Only set again by publishTo, before the map is visible to other threads. */
+    private ChangeStream<K,V> changes;
+    private final ConcurrentSkipListSet<Expiry<K>> expiryIndex;
+    private final boolean lazyRemoval;
+    private final AtomicInteger removedCount = new AtomicInteger();
+    private final AtomicBoolean purging = new AtomicBoolean();
+    /** Where the next purge on a remover's thread resumes, null for the lowest key. */
+    private volatile K purgeFrom;
+    private final NodeRecycler recycler;
+    private final Elimination elimination;
+    private final Combiner combiner;
+    private final boolean fingerSearch;
+    private final ThreadLocal<TreeNodeVersion<K,V>> fingerStates;
+    private final AtomicInteger activeRangeIterators = new AtomicInteger();
+    private final LongAdder transactionRetries = new LongAdder();
+    private volatile Maintenance maintenance;
+    private volatile MaintenanceStats maintenanceStats = new MaintenanceStats(0, 0, 0, 0, 0, 0, 0);
 
     public BLTreeMap()
     {
-        this.root = new NegInfTreeNode();
+        this(0);
+    }
+
+    public BLTreeMap(int options)
+    {
+        this.root = new NegInfTreeNode<>();
+        this.valueIndex = (options & INDEX_VALUES) != 0 ? new ConcurrentHashMap<>() : null;
+        this.nodeIndex = (options & HASH_INDEX) != 0 ? new ConcurrentHashMap<>() : null;
+        this.changes = (options & CHANGE_STREAM) != 0 ? new ChangeStream<>(CHANGE_STREAM_CAPACITY) : null;
+        this.expiryIndex = (options & EXPIRY) != 0 ? new ConcurrentSkipListSet<>() : null;
+        this.lazyRemoval = (options & LAZY_REMOVAL) != 0;
+        this.recycler = (options & RECYCLE_NODES) != 0 ? new NodeRecycler() : null;
+        this.elimination = (options & ELIMINATION) != 0 ? new Elimination() : null;
+        this.combiner = (options & FLAT_COMBINING) != 0 ? new Combiner() : null;
+        this.fingerSearch = (options & FINGER_SEARCH) != 0;
+        this.fingerStates = fingerSearch && recycler == null ? ThreadLocal.withInitial(this::newFingerState) : null;
+    }
+
+    private V tombstone(){
+        return (V) TOMBSTONE;
     }
 
-    private int size;
-    private final Object sizeLock = new Object();
+    private V contended(){
+        return (V) CONTENDED;
+    }
+
+    private final AtomicInteger size = new AtomicInteger();
 
     private void incrementSize(){
-        synchronized (sizeLock){
-            ++size;
-        }
+        size.incrementAndGet();
     }
 
     private void decrementSize(){
-        synchronized (sizeLock){
-            --size;
-        }
+        size.decrementAndGet();
     }
 
     @Override
     public int size() {
-        return size;
+        return size.get();
     }
 
     @Override
@@ -37,100 +158,797 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
 
     @Override
     public boolean containsKey(Object keyObj) {
-        K key = (K) keyObj;
-        TreeNode node = getNode(key);
-        return node != null;
+        return lookup((K) keyObj) != TOMBSTONE;
     }
 
     @Override
     public boolean containsValue(Object value) {
-        TreeNodeValue tValue = new TreeNodeValue();
-        while(!this.root.findValue((V)value, null, null, true, tValue)){}
-        if(!tValue.foundExactly) this.root.unsetChangingRange(null, null, true);
+        if(valueIndex != null && value != null) return valueIndex.containsKey(value);
+        TreeNodeValue<K,V> tValue = new TreeNodeValue<>();
+        Epoch.Ticket ticket = enter();
+        activeRangeIterators.incrementAndGet();
+        try {
+            while(!this.root.findValue((V)value, null, null, true, tValue)){}
+            if(!tValue.foundExactly) this.root.unsetChangingRange(null, null, true);
+        } finally {
+            activeRangeIterators.decrementAndGet();
+            exit(ticket);
+        }
         return tValue.foundExactly;
     }
 
-    private TreeNode getNode(K key) {
-        TreeNodeVersion outNode = new TreeNodeVersion();
-        while(true) {
-            if(!root.findClosestNode(key, outNode)) continue;
-            TreeNode node = outNode.node;
-            synchronized(node){
-                if(node.version != outNode.nVersion) continue;
-                if(node.keysEqual(key) != outNode.foundExactly) continue;
-                if (node.keysEqual(key)) return node;
-                return null;
+    /**
+     * Returns the keys currently mapped to the given value. Requires the map
+     * to be created with {@link #INDEX_VALUES}; the returned set is a live,
+     * unmodifiable view of the index.
+     */
+    public Set<K> keysForValue(V value) {
+        if(valueIndex == null) throw new UnsupportedOperationException("value index is disabled");
+        if(value == null) return Collections.emptySet();
+        Set<K> keys = valueIndex.get(value);
+        if(keys == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(keys);
+    }
+
+    private void indexValue(K key, V value){
+        if(valueIndex == null || value == null || value == TOMBSTONE) return;
+        valueIndex.compute(value, (v, keys) -> {
+            if(keys == null) keys = ConcurrentHashMap.newKeySet();
+            keys.add(key);
+            return keys;
+        });
+    }
+
+    private V setValue(TreeNode<K,V> node, V value){
+        return setValue(node, value, NEVER);
+    }
+
+    /**
+     * Replaces the node's value and expiry time and moves its key in the
+     * value and expiry indexes. The caller holds the node's lock. The write
+     * goes through the node's value stamp, not its version, so searches
+     * passing through the node carry on, while a transaction or a hash index
+     * read can still validate the value and expiry it read, by stamp.
+     */
+    private V setValue(TreeNode<K,V> node, V value, long expiresAt){
+        V oldValue = node.value;
+        long oldExpiresAt = node.expiresAt();
+        if(oldValue != value || oldExpiresAt != expiresAt) {
+            // an odd stamp here is held by a commit across all its writes
+            boolean open = (node.valueStamp & 1) == 0;
+            if(open) node.beginValueWrite();
+            node.setExpiresAt(expiresAt);
+            node.value = value;
+            if(open) node.endValueWrite();
+        }
+        if(oldValue != value) {
+            unindexValue(node.key, oldValue);
+            indexValue(node.key, value);
+        }
+        if(oldExpiresAt != expiresAt) {
+            unindexExpiry(node.key, oldExpiresAt);
+            indexExpiry(node.key, expiresAt);
+        }
+        return oldValue;
+    }
+
+    private void indexExpiry(K key, long expiresAt){
+        if(expiresAt != NEVER) expiryIndex.add(new Expiry<>(expiresAt, key));
+    }
+
+    private void unindexExpiry(K key, long expiresAt){
+        if(expiresAt != NEVER) expiryIndex.remove(new Expiry<>(expiresAt, key));
+    }
+
+    /**
+     * The stream of changes to the map. Requires the map to be created with
+     * {@link #CHANGE_STREAM}. Every change is published under the locks
+     * that make it visible, before it is visible, so the changes of a key
+     * come in the order they were made. The writes of a transaction come one
+     * by one, an update eliminated against another of the same key is not
+     * published itself, and a bulk load publishes nothing. clear is not
+     * atomic against concurrent updates, and an update it loses can still
+     * show up in the stream after the clear. Publishing never waits for a
+     * subscriber: one that falls CHANGE_STREAM_CAPACITY changes behind
+     * loses the oldest and is told so by its next poll.
+     */
+    public ChangeStream<K,V> changes() {
+        if(changes == null) throw new UnsupportedOperationException("change stream is disabled");
+        return changes;
+    }
+
+    /**
+     * Makes the map publish to changes from now on, a stream that other maps
+     * may share, in place of its own. The map must not be visible to other
+     * threads yet.
+     */
+    void publishTo(ChangeStream<K,V> changes) {
+        this.changes = changes;
+    }
+
+    private void publishChange(K key, V value){
+        if(changes != null) changes.publish(key, value);
+    }
+
+    private void unindexValue(K key, V value){
+        if(valueIndex == null || value == null || value == TOMBSTONE) return;
+        valueIndex.computeIfPresent(value, (v, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Returns the value mapped to key, read under the node's lock after
+     * validating the node's version, or TOMBSTONE when there is no mapping.
+     * A commit holds the value stamps of the nodes it writes odd until all
+     * of its values are written, and a read of such a node is repeated, so
+     * that no lookup sees half of a transaction.
+     */
+    private Object lookup(K key) {
+        return lookup(key, searchState());
+    }
+
+    private Object lookup(K key, TreeNodeVersion<K,V> outNode) {
+        Epoch.Ticket ticket = enter();
+        try {
+            while(true) {
+                if(nodeIndex != null) {
+                    Object value = indexedLookup(key);
+                    if(value != CONTENDED) return value;
+                }
+                if(!findClosestNode(key, outNode)) continue;
+                TreeNode<K,V> node = outNode.node;
+                Object value;
+                boolean committing;
+                node.lock();
+                try {
+                    if(node.version != outNode.nVersion) continue;
+                    if(node.keysEqual(key) != outNode.foundExactly) continue;
+                    value = outNode.foundExactly && !node.isExpired() ? node.value : TOMBSTONE;
+                    committing = (node.valueStamp & 1) != 0;
+                } finally {
+                    node.unlock();
+                }
+                if(!committing) return value;
+                Thread.yield();
+            }
+        } finally {
+            exit(ticket);
+        }
+    }
+
+    /**
+     * Reads key through the hash index. Every node in the tree is indexed
+     * before its inserter releases the parent's lock, so a key missing
+     * from the index is not in the map. An entry whose node is deleted is
+     * about to be replaced, and the read returns CONTENDED. The value stamp
+     * moves with every value and every reuse of the node, so a value read
+     * between two equal even stamps of a node that is live afterwards is
+     * current. An odd stamp may be held by a commit for all of its writes,
+     * so the read yields while it waits.
+     */
+    private Object indexedLookup(K key) {
+        TreeNode<K,V> node = nodeIndex.get(key);
+        if(node == null) return TOMBSTONE;
+        while(true){
+            int stamp = node.valueStamp;
+            if(node.isDeleted() || !node.keysEqual(key)) return CONTENDED;
+            if((stamp & 1) != 0) {
+                Thread.yield();
+                continue;
             }
+            Object value = node.isExpired() ? TOMBSTONE : node.value;
+            if(node.valueStamp == stamp && !node.isDeleted()) return value;
         }
     }
 
     @Override
     public V get(Object keyObj) {
-        K key = (K) keyObj;
-        TreeNode node = getNode(key);
-        if(node == null) return null;
-        return node.value;
+        Object value = lookup((K) keyObj);
+        return value == TOMBSTONE ? null : (V) value;
     }
     
+    /**
+     * Looks up keys[i] into values[i] for every i, through one {@link Finger}
+     * so that each search resumes from the ancestors it shares with the
+     * previous key. Any order is correct, ascending order is the fast one.
+     * Each key is looked up on its own, so the results are not a snapshot.
+     * Returns the number of keys that were found.
+     */
+    public int getAll(K[] keys, V[] values) {
+        if(values.length < keys.length) throw new IllegalArgumentException("values is shorter than keys");
+        TreeNodeVersion<K,V> outNode = newFingerState();
+        int found = 0;
+        for(int i = 0; i < keys.length; ++i){
+            Object value = lookup(keys[i], outNode);
+            if(value == TOMBSTONE) {
+                values[i] = null;
+            } else {
+                values[i] = (V) value;
+                ++found;
+            }
+        }
+        return found;
+    }
+
     @Override
     public V put(K key, V value) {
-        TreeNodeVersion outNode = new TreeNodeVersion();
-        while(true){
-            if(!root.findClosestNode(key, outNode)) continue;            
-            TreeNode node = outNode.node;
-            synchronized (node)
-            {
-                if(!outNode.validate()) continue;
-                if(node.isMarked()) continue;
-                if(node.keysEqual(key) != outNode.foundExactly) continue;
-                if(outNode.foundExactly)
-                {
-                    return node.setValue(value);                           
-                }
+        if(combiner != null) return combiner.update(key, value, true);
+        if(elimination != null) return elimination.update(key, value, true);
+        return putInTree(key, value, UNBOUNDED, searchState());
+    }
+
+    /**
+     * Maps key to value for ttl, after which the entry reads as absent until
+     * {@link #purgeExpired()} removes it. A plain put of the key takes the
+     * expiry away again. Requires the map to be created with {@link #EXPIRY};
+     * bypasses elimination and combining.
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        if(expiryIndex == null) throw new UnsupportedOperationException("expiry is disabled");
+        if(ttl <= 0) throw new IllegalArgumentException("ttl must be positive");
+        long expiresAt = System.nanoTime() + unit.toNanos(ttl);
+        return putInTree(key, value, expiresAt == NEVER ? 1 : expiresAt, UNBOUNDED, searchState());
+    }
+
+    private V putInTree(K key, V value, int attempts, TreeNodeVersion<K,V> outNode) {
+        return putInTree(key, value, NEVER, attempts, outNode);
+    }
+
+    /**
+     * Gives up and returns CONTENDED when attempts run out before the update
+     * could be validated; UNBOUNDED retries until it succeeds. An expired
+     * entry that is replaced counts as absent in the result.
+     */
+    private V putInTree(K key, V value, long expiresAt, int attempts, TreeNodeVersion<K,V> outNode) {
+        Epoch.Ticket ticket = enter();
+        try {
+            while(true){
+                if(attempts == 0) return contended();
+                if(attempts != UNBOUNDED) --attempts;
+                if(!findClosestNode(key, outNode)) continue;
+                TreeNode<K,V> node = outNode.node;
+                node.lock();
+                try {
+                    if(!outNode.validate()) continue;
+                    if(node.isMarked()) continue;
+                    if(node.keysEqual(key) != outNode.foundExactly) continue;
+                    if(outNode.foundExactly)
+                    {
+                        publishChange(key, value);
+                        boolean expired = node.isExpired();
+                        V oldValue = setValue(node, value, expiresAt);
+                        if(oldValue != TOMBSTONE) return expired ? null : oldValue;
+                        removedCount.decrementAndGet();
+                        incrementSize();
+                        return null;
+                    }
                 
-                ChildDir dir = node.getDirection(key);
-                if(dir == ChildDir.This) continue;
-                if(node.getChild(dir) != null) continue;
-                node.setChild(dir, new TreeNode(key, value));
-                incrementSize();
-                return null;
+                    ChildDir dir = node.getDirection(key);
+                    if(dir == ChildDir.This) continue;
+                    if(node.getChild(dir) != null) continue;
+                    TreeNode<K,V> newNode = newNode(key, value);
+                    newNode.setExpiresAt(expiresAt);
+                    publishChange(key, value);
+                    node.setChild(dir, newNode);
+                    indexNode(newNode);
+                    incrementSize();
+                    indexValue(key, value);
+                    indexExpiry(key, expiresAt);
+                    return null;
+                } finally {
+                    node.unlock();
+                }
             }
+        } finally {
+            exit(ticket);
         }
     }
     
     @Override
     public V remove(Object keyObj) {
         K key = (K) keyObj;
-        TreeNodeVersion outNode = new TreeNodeVersion();
+        if(combiner != null) return combiner.update(key, null, false);
+        if(elimination != null) return elimination.update(key, null, false);
+        return removeFromTree(key, UNBOUNDED, searchState());
+    }
+
+    /**
+     * Puts key unless its search fails validation attempts times, and then
+     * returns a result for which {@link #isContended} holds, with nothing
+     * changed. Bypasses elimination and combining, whose waiting for a
+     * partner is what a bounded attempt is meant to avoid.
+     */
+    V tryPut(K key, V value, int attempts) {
+        return putInTree(key, value, attempts, searchState());
+    }
+
+    /**
+     * Like {@link #tryPut}, for a remove.
+     */
+    V tryRemove(K key, int attempts) {
+        return removeFromTree(key, attempts, searchState());
+    }
+
+    static boolean isContended(Object result) {
+        return result == CONTENDED;
+    }
+
+    /**
+     * Applies updates given in ascending key order through one {@link Finger},
+     * so that each search resumes from the ancestors it shares with the
+     * previous key. A null value removes the key. Bypasses elimination and
+     * combining, which only pay off for updates that arrive one at a time.
+     */
+    void applySorted(Iterator<? extends Map.Entry<K,V>> updates) {
+        BiConsumer<K,V> writer = sortedWriter();
+        while(updates.hasNext()){
+            Map.Entry<K,V> update = updates.next();
+            writer.accept(update.getKey(), update.getValue());
+        }
+    }
+
+    /**
+     * Like applySorted, one update per call, for a caller that has to decide
+     * on each update as it goes. A writer is used by one thread at a time.
+     */
+    BiConsumer<K,V> sortedWriter() {
+        TreeNodeVersion<K,V> outNode = newFingerState();
+        return (key, value) -> {
+            if(value == null) removeFromTree(key, UNBOUNDED, outNode);
+            else putInTree(key, value, UNBOUNDED, outNode);
+        };
+    }
+
+    /**
+     * Links count entries given in strictly ascending key order as a perfectly
+     * balanced tree, in one pass and without a search per key. An entry that
+     * is a {@link TimedEntry} keeps its expiry time. The map must be empty
+     * and not yet visible to other threads.
+     */
+    void bulkLoad(Iterator<? extends Map.Entry<K,V>> entries, int count) {
+        if(count < 0) throw new IllegalArgumentException("count must not be negative");
+        if(root.left != null || root.right != null) throw new IllegalStateException("map is not empty");
+        @SuppressWarnings("unchecked")
+        K[] last = (K[]) new Comparable<?>[1];
+        TreeNode<K,V> top = build(entries, count, last);
+        if(entries.hasNext()) throw new IllegalArgumentException("more than count entries");
+        root.lock();
+        try {
+            root.setChild(ChildDir.Right, top);
+        } finally {
+            root.unlock();
+        }
+        size.set(count);
+    }
+
+    private TreeNode<K,V> build(Iterator<? extends Map.Entry<K,V>> entries, int count, K[] last) {
+        if(count == 0) return null;
+        int leftCount = (count - 1) / 2;
+        TreeNode<K,V> left = build(entries, leftCount, last);
+        if(!entries.hasNext()) throw new IllegalArgumentException("fewer than count entries");
+        Map.Entry<K,V> entry = entries.next();
+        K key = entry.getKey();
+        if(key == null) throw new NullPointerException();
+        if(last[0] != null && last[0].compareTo(key) >= 0) throw new IllegalArgumentException("keys must be strictly ascending");
+        last[0] = key;
+        TreeNode<K,V> node = newNode(key, entry.getValue());
+        if(entry instanceof TimedEntry && ((TimedEntry<?,?>) entry).expiresAt != NEVER) {
+            if(expiryIndex == null) throw new UnsupportedOperationException("expiry is disabled");
+            node.setExpiresAt(((TimedEntry<?,?>) entry).expiresAt);
+            indexExpiry(key, node.expiresAt());
+        }
+        node.left = left;
+        node.right = build(entries, count - 1 - leftCount, last);
+        node.setHeight(1 + Math.max(height(node.left), height(node.right)));
+        indexNode(node);
+        indexValue(key, entry.getValue());
+        return node;
+    }
+
+    /**
+     * Copies the entries into a {@link FrozenBLTreeMap}, a static index laid
+     * out for lookups with a small tree in front for later writes. The copy
+     * walks the keys in ascending order like the keySet view, so it is weakly
+     * consistent with concurrent writes; freeze a map that has stopped
+     * changing. The map itself is left as it is.
+     */
+    public FrozenBLTreeMap<K,V> freeze() {
+        return new FrozenBLTreeMap<>(entrySet().iterator());
+    }
+
+    /**
+     * The live entries in ascending key order with their expiry times, for a
+     * copy that bulkLoad builds into another map. Weakly consistent with
+     * concurrent writes, like the views.
+     */
+    List<TimedEntry<K,V>> timedEntries() {
+        List<TimedEntry<K,V>> entries = new ArrayList<>(size());
+        for(Cursor cursor = new Cursor(); cursor.hasNext; cursor.moveNext()){
+            entries.add(new TimedEntry<>(cursor.nextKey, cursor.nextValue, cursor.nextExpiresAt));
+        }
+        return entries;
+    }
+
+    /**
+     * Gives key the value and expiry time it has in source, or removes it if
+     * source has no live entry for it, so that a copy made by timedEntries
+     * catches up with a write made while it was taken. A write of key to
+     * source that runs meanwhile may or may not be copied, so the caller
+     * copies such a key again.
+     */
+    void copyKey(K key, BLTreeMap<K,V> source) {
+        BLTreeMap<K,V>.Cursor cursor = source.new Cursor(key, false);
+        if(cursor.hasNext && cursor.nextKey.compareTo(key) == 0) {
+            putInTree(key, cursor.nextValue, cursor.nextExpiresAt, UNBOUNDED, searchState());
+        } else {
+            removeFromTree(key, UNBOUNDED, searchState());
+        }
+    }
+
+    private V removeFromTree(K key, int attempts, TreeNodeVersion<K,V> outNode) {
+        V oldValue;
+        Epoch.Ticket ticket = enter();
+        try {
+            if(!lazyRemoval) return unlink(key, false, ANY_EXPIRY, attempts, outNode);
+            oldValue = markRemoved(key, ANY_EXPIRY, attempts, outNode);
+        } finally {
+            exit(ticket);
+        }
+        purgeIfCrowded();
+        return oldValue;
+    }
+
+    /**
+     * Marks key removed and returns its value, or null if it was absent or
+     * expired. With onlyExpiresAt other than ANY_EXPIRY, removes key only
+     * if it expires at that time and then returns TOMBSTONE.
+     */
+    private V markRemoved(K key, long onlyExpiresAt, int attempts, TreeNodeVersion<K,V> outNode) {
+        V oldValue;
         while(true){
-            if(!root.findClosestNode(key, outNode)) continue;
-            TreeNode node = outNode.node;
-            TreeNode parent = outNode.parent;
+            if(attempts == 0) return contended();
+            if(attempts != UNBOUNDED) --attempts;
+            if(!findClosestNode(key, outNode)) continue;
+            TreeNode<K,V> node = outNode.node;
+            node.lock();
+            try {
+                if(node.version != outNode.nVersion) continue;
+                if(node.isMarked()) continue;
+                if(node.keysEqual(key) != outNode.foundExactly) continue;
+                if(!outNode.foundExactly || node.value == TOMBSTONE) return null;
+                if(onlyExpiresAt != ANY_EXPIRY && node.expiresAt() != onlyExpiresAt) return null;
+                publishChange(key, null);
+                boolean expired = node.isExpired();
+                oldValue = setValue(node, tombstone());
+                if(onlyExpiresAt != ANY_EXPIRY) oldValue = tombstone();
+                else if(expired) oldValue = null;
+                decrementSize();
+                removedCount.incrementAndGet();
+                break;
+            } finally {
+                node.unlock();
+            }
+        }
+        return oldValue;
+    }
+
+    /**
+     * Physically unlinks the nodes that {@link #LAZY_REMOVAL} left behind as
+     * tombstones. Returns the number of nodes unlinked.
+     */
+    public int purgeRemoved() {
+        return purgeRemoved(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Once tombstones outnumber the live keys, unlinks those among the next
+     * PURGE_SCAN keys on the remover's thread, resuming where the previous
+     * such purge stopped, so a remove never pays for a scan of the whole
+     * tree. One thread purges at a time, and none while the maintenance
+     * thread is running, as that purges on its own.
+     */
+    private void purgeIfCrowded() {
+        if(removedCount.get() <= Math.max(size(), PURGE_BATCH) || maintenance != null) return;
+        if(!purging.compareAndSet(false, true)) return;
+        try {
+            purgeRemoved(purgeFrom, PURGE_SCAN);
+        } finally {
+            purging.set(false);
+        }
+    }
+
+    /**
+     * Unlinks the tombstones among the next scanLimit keys from from on, or
+     * from the lowest key if from is null, and leaves purgeFrom at the key
+     * after the last one scanned, or null at the end of the tree.
+     */
+    private int purgeRemoved(K from, int scanLimit) {
+        if(removedCount.get() == 0) return 0;
+        List<K> batch = new ArrayList<>(PURGE_BATCH);
+        int purged = 0;
+        int scanned = 0;
+        Cursor cursor = new Cursor(from, true);
+        while(cursor.hasNext && scanned < scanLimit){
+            if(cursor.nextValue == TOMBSTONE) batch.add(cursor.nextKey);
+            ++scanned;
+            cursor.moveNext();
+            if(batch.size() == PURGE_BATCH || ((!cursor.hasNext || scanned == scanLimit) && !batch.isEmpty())){
+                for(K key : batch){
+                    Epoch.Ticket ticket = enter();
+                    try {
+                        if(unlink(key, true, ANY_EXPIRY, UNBOUNDED, searchState()) == TOMBSTONE) ++purged;
+                    } finally {
+                        exit(ticket);
+                    }
+                }
+                batch.clear();
+            }
+        }
+        purgeFrom = cursor.hasNext ? cursor.nextKey : null;
+        return purged;
+    }
+
+    public int removedCount() {
+        return removedCount.get();
+    }
+
+    /**
+     * Removes the entries whose time to live has run out and returns how
+     * many it removed. Takes the due entries off the front of the expiry
+     * index and visits no other; an entry that was put again since it was
+     * indexed is left alone. The maintenance thread calls this on every
+     * pass.
+     */
+    public int purgeExpired() {
+        if(expiryIndex == null) return 0;
+        int expired = 0;
+        long now = System.nanoTime();
+        for(Expiry<K> due : expiryIndex){
+            if(due.expiresAt - now > 0) break;
+            if(expiryIndex.remove(due) && expire(due.key, due.expiresAt)) ++expired;
+        }
+        if(lazyRemoval) purgeIfCrowded();
+        return expired;
+    }
+
+    private boolean expire(K key, long expiresAt) {
+        Epoch.Ticket ticket = enter();
+        try {
+            TreeNodeVersion<K,V> outNode = searchState();
+            if(lazyRemoval) return markRemoved(key, expiresAt, UNBOUNDED, outNode) == TOMBSTONE;
+            return unlink(key, false, expiresAt, UNBOUNDED, outNode) == TOMBSTONE;
+        } finally {
+            exit(ticket);
+        }
+    }
+
+    /**
+     * Removes about count of the lowest keys and hands each removed entry to
+     * removed. Detaches a whole head subtree at once where it can: the left
+     * subtree of a node on the leftmost path holds exactly the keys below
+     * that node, so marking its nodes and cutting the one link removes them
+     * all. The subtrees along the path are sized from the bottom up and no
+     * further than count, so the work is bounded by count and the depth of
+     * the tree, not by the size of the map. When no subtree fits, or one of
+     * its nodes is busy with another update, the lowest keys are removed one
+     * by one instead. Returns the number of entries removed.
+     */
+    int evictHead(int count, BiConsumer<? super K, ? super V> removed) {
+        if(count <= 0) return 0;
+        Epoch.Ticket ticket = enter();
+        try {
+            for(int attempt = 0; attempt < 3; ++attempt){
+                TreeNode<K,V> cut = headCut(count);
+                if(cut == null) break;
+                int evicted = detachLeft(cut, removed);
+                if(evicted >= 0) return evicted;
+            }
+        } finally {
+            exit(ticket);
+        }
+        return evictLowest(count, removed);
+    }
+
+    /**
+     * The highest node on the leftmost path whose left subtree has at most
+     * count nodes, or null if there is none. Reads without locks, so the
+     * sizes are estimates.
+     */
+    private TreeNode<K,V> headCut(int count) {
+        List<TreeNode<K,V>> path = new ArrayList<>();
+        for(TreeNode<K,V> node = root.right; node != null; node = node.left) path.add(node);
+        TreeNode<K,V> cut = null;
+        int below = 0;
+        for(int i = path.size() - 2; i >= 0; --i){
+            TreeNode<K,V> child = path.get(i + 1);
+            below += 1 + countUpTo(child.right, count - below);
+            if(below > count) break;
+            cut = path.get(i);
+        }
+        return cut;
+    }
+
+    private int countUpTo(TreeNode<K,V> node, int limit) {
+        int counted = 0;
+        ArrayDeque<TreeNode<K,V>> pending = new ArrayDeque<>();
+        if(node != null) pending.push(node);
+        while(!pending.isEmpty() && counted < limit){
+            TreeNode<K,V> next = pending.pop();
+            ++counted;
+            if(next.left != null) pending.push(next.left);
+            if(next.right != null) pending.push(next.right);
+        }
+        return counted + pending.size();
+    }
+
+    /**
+     * Marks every node of parent's left subtree and unlinks the subtree.
+     * Gives up, leaving the tree as it was, and returns -1 if parent has gone
+     * or a node is marked by another update; the marks already taken are
+     * dropped again, and the locks are only held one at a time below
+     * parent, so a transaction or removal waiting on parent cannot deadlock
+     * with this.
+     */
+    private int detachLeft(TreeNode<K,V> parent, BiConsumer<? super K, ? super V> removed) {
+        List<TreeNode<K,V>> marked = new ArrayList<>();
+        parent.lock();
+        try {
+            if(parent.isMarked() || parent.left == null) return -1;
+            try {
+                ArrayDeque<TreeNode<K,V>> pending = new ArrayDeque<>();
+                pending.push(parent.left);
+                while(!pending.isEmpty()){
+                    TreeNode<K,V> node = pending.pop();
+                    node.lock();
+                    try {
+                        if(node.isMarked()) return -1;
+                        node.setChanging();
+                    } finally {
+                        node.unlock();
+                    }
+                    marked.add(node);
+                    if(node.left != null) pending.push(node.left);
+                    if(node.right != null) pending.push(node.right);
+                }
+                int live = 0;
+                int tombstones = 0;
+                for(TreeNode<K,V> node : marked){
+                    if(node.value == TOMBSTONE) {
+                        ++tombstones;
+                    } else {
+                        ++live;
+                        publishChange(node.key, null);
+                        unindexValue(node.key, node.value);
+                        unindexExpiry(node.key, node.expiresAt());
+                        removed.accept(node.key, node.value);
+                    }
+                    node.setDeleted();
+                    retire(node);
+                }
+                parent.setChild(ChildDir.Left, null);
+                size.addAndGet(-live);
+                if(tombstones > 0) removedCount.addAndGet(-tombstones);
+                return live;
+            } finally {
+                for(TreeNode<K,V> node : marked) node.unsetChanging();
+            }
+        } finally {
+            parent.unlock();
+        }
+    }
+
+    private int evictLowest(int count, BiConsumer<? super K, ? super V> removed) {
+        List<K> lowest = new ArrayList<>(Math.min(count, PURGE_BATCH));
+        for(Cursor cursor = new Cursor(); cursor.hasNext && lowest.size() < count; cursor.moveNext()) lowest.add(cursor.nextKey);
+        int evicted = 0;
+        for(K key : lowest){
+            V value = removeFromTree(key, UNBOUNDED, searchState());
+            if(value == null) continue;
+            removed.accept(key, value);
+            ++evicted;
+        }
+        return evicted;
+    }
+
+    /**
+     * An entry with the expiry time of its node, NEVER for none.
+     */
+    static final class TimedEntry<K,V> extends AbstractMap.SimpleImmutableEntry<K,V> {
+        private static final long serialVersionUID = -830414563091348281L;
+
+        private final long expiresAt;
+
+        private TimedEntry(K key, V value, long expiresAt) {
+            super(key, value);
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * An entry of the expiry index: key expires at expiresAt, a System.nanoTime
+     * value. Ordered by time, then key.
+     */
+    private static final class Expiry<K extends Comparable<K>> implements Comparable<Expiry<K>> {
+        private final long expiresAt;
+        private final K key;
+
+        private Expiry(long expiresAt, K key) {
+            this.expiresAt = expiresAt;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Expiry<K> other) {
+            int c = Long.compare(expiresAt, other.expiresAt);
+            return c != 0 ? c : key.compareTo(other.key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Expiry && compareTo((Expiry<K>) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(expiresAt) ^ key.hashCode();
+        }
+    }
+
+    /**
+     * Unlinks key and returns its value, or null if it was absent or
+     * expired. onlyTombstone unlinks only a removed key and onlyExpiresAt,
+     * other than ANY_EXPIRY, only a key that expires at that time; either
+     * returns TOMBSTONE when it unlinked.
+     */
+    private V unlink(K key, boolean onlyTombstone, long onlyExpiresAt, int attempts, TreeNodeVersion<K,V> outNode) {
+        while(true){
+            if(attempts == 0) return contended();
+            if(attempts != UNBOUNDED) --attempts;
+            if(!findClosestNode(key, outNode)) continue;
+            TreeNode<K,V> node = outNode.node;
+            TreeNode<K,V> parent = outNode.parent;
             if(node == root || parent == null) return null;
-            synchronized (parent){
-                synchronized (node){
+            parent.lock();
+            try {
+                node.lock();
+                try {
                     if(!outNode.validate()) continue;                    
                     if(node.isMarked() || parent.isMarked()) continue;
                     if(node.keysEqual(key) != outNode.foundExactly) continue;
                     if(!outNode.foundExactly) return null;
+                    V oldValue = node.value;
+                    if(onlyTombstone && oldValue != TOMBSTONE) return null;
+                    if(onlyExpiresAt != ANY_EXPIRY && (oldValue == TOMBSTONE || node.expiresAt() != onlyExpiresAt)) return null;
+                    boolean expired = node.isExpired();
                     if(node.left == null || node.right == null) {
-                        decrementSize();
-                        V value = parent.removeSingleChild(outNode.dir, node);
-                        return value;
+                        if(oldValue != TOMBSTONE) publishChange(key, null);
+                        parent.removeSingleChild(outNode.dir, node);
+                        retire(node);
+                    } else if(!removeHelper(parent, node, outNode.dir)) continue;
+                    if(oldValue == TOMBSTONE) {
+                        removedCount.decrementAndGet();
+                        return onlyTombstone ? oldValue : null;
                     }
-                    
-                    V oldValue = node.value;
-                    if(!removeHelper(parent, node, outNode.dir)) continue;
-                    return oldValue;
+                    decrementSize();
+                    unindexValue(key, oldValue);
+                    unindexExpiry(key, node.expiresAt());
+                    if(onlyExpiresAt != ANY_EXPIRY) return tombstone();
+                    return expired ? null : oldValue;
+                } finally {
+                    node.unlock();
                 }
+            } finally {
+                parent.unlock();
             }
         }
     }
     
-    private boolean removeHelper(TreeNode parent, TreeNode node, ChildDir dir){
-        Stack<TreeNode> setChangingStack = new Stack<>();
+    private boolean removeHelper(TreeNode<K,V> parent, TreeNode<K,V> node, ChildDir dir){
+        Stack<TreeNode<K,V>> setChangingStack = new Stack<>();
         
-        TreeNodeVersion successor = new TreeNodeVersion();
+        TreeNodeVersion<K,V> successor = new TreeNodeVersion<>();
         successor.setParent(parent);
         
         node.setChanging();
@@ -139,8 +957,9 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
         successor.dir = dir;
         try {
             boolean first = true;
-            for(TreeNode pos = successor.node.right; pos != null;pos = pos.left){
-                synchronized(pos){
+            for(TreeNode<K,V> pos = successor.node.right; pos != null;pos = pos.left){
+                pos.lock();
+                try {
                 if(pos.isMarked()) return false;
                 pos.setChanging();
                 setChangingStack.push(pos);
@@ -151,81 +970,1163 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
                     first = false;
                 } else 
                     successor.dir = ChildDir.Left;
+                } finally {
+                    pos.unlock();
                 }
                 if(!successor.validate()) return false;
             }
-            final TreeNode successorParent = successor.parent;
-            final TreeNode successorNode = successor.node;
-            synchronized (successorParent) {
-                synchronized (successorNode) {
+            final TreeNode<K,V> successorParent = successor.parent;
+            final TreeNode<K,V> successorNode = successor.node;
+            // successorParent is node itself when the successor is node's right
+            // child, and node is already locked by the caller
+            if(successorParent != node) successorParent.lock();
+            try {
+                successorNode.lock();
+                try {
                     if(!successor.validate()) return false;
-                    if (successor.node.left != null) return false;                    
-                    successor.parent.removeSingleChild(successor.dir, successor.node);
-                    parent.increaseVersion();
-                    node.key = successor.node.key;
-                    node.value = successor.node.value;                    
+                    if (successorNode.left != null) return false;
+                    // the copy stays marked like the successor until both are
+                    // settled, so that no write can make their values differ
+                    TreeNode<K,V> copy = newNode(successorNode.key, successorNode.value);
+                    copy.setExpiresAt(successorNode.expiresAt());
+                    copy.setHeight(node.getHeight());
+                    copy.setChanging();
+                    setChangingStack.push(copy);
+                    copy.left = node.left;
+                    copy.right = successorParent == node ? successorNode.right : node.right;
+                    if(node.value != TOMBSTONE) publishChange(node.key, null);
+                    node.setDeleted();
+                    parent.setChild(dir, copy);
+                    indexNode(copy);
+                    if(successorParent == node) successorNode.setDeleted();
+                    else successorParent.removeSingleChild(successor.dir, successorNode);
+                    retire(node);
+                    retire(successorNode);
+                } finally {
+                    successorNode.unlock();
+                }
+            } finally {
+                if(successorParent != node) successorParent.unlock();
+            }
+            return true;
+        } finally {
+            while(!setChangingStack.isEmpty()) setChangingStack.pop().unsetChanging();
+        }
+    }
+    
+    private Epoch.Ticket enter() {
+        return recycler == null ? null : recycler.enter();
+    }
+
+    private void exit(Epoch.Ticket ticket) {
+        if(ticket != null) ticket.leave(0);
+    }
+
+    private TreeNode<K,V> newNode(K key, V value) {
+        return recycler == null ? createNode(key, value) : recycler.allocate(key, value);
+    }
+
+    /**
+     * Only a map with an expiry index pays for the expiry time of a node.
+     */
+    private TreeNode<K,V> createNode(K key, V value) {
+        return expiryIndex == null ? new TreeNode<>(key, value) : new ExpiringTreeNode<>(key, value);
+    }
+
+    /**
+     * Called under the locks that unlinked node. A node that replaces it
+     * under the same key is indexed first, so the key never drops out of the
+     * index.
+     */
+    private void retire(TreeNode<K,V> node) {
+        if(nodeIndex != null) nodeIndex.remove(node.key, node);
+        if(recycler != null) recycler.retire(node);
+    }
+
+    private void indexNode(TreeNode<K,V> node) {
+        if(nodeIndex != null) nodeIndex.put(node.key, node);
+    }
+
+    private boolean findClosestNode(K key, TreeNodeVersion<K,V> outNode) {
+        if(outNode.finger != null) return outNode.finger.findClosestNode(root, key, outNode);
+        return root.findClosestNode(key, outNode);
+    }
+
+    private TreeNodeVersion<K,V> searchState() {
+        if(recycler != null) return recycler.local.get().searchState;
+        if(fingerStates != null) return fingerStates.get();
+        return new TreeNodeVersion<>();
+    }
+
+    private TreeNodeVersion<K,V> newFingerState() {
+        TreeNodeVersion<K,V> state = new TreeNodeVersion<>();
+        state.finger = new Finger<>();
+        return state;
+    }
+
+    /**
+     * Every operation arrives at the current epoch before it touches a node
+     * and leaves when it no longer holds one. A node unlinked while epoch E is
+     * current can only be reached by operations that arrived at E or earlier,
+     * so it is handed out again once E and all older epochs have closed.
+     * Retired and free nodes are chained through TreeNode.nextFree, so
+     * retiring and reusing a node allocates nothing; the per-thread pool also
+     * carries the search state that every lookup and update would allocate.
+     */
+    private class NodeRecycler {
+        private static final int EPOCH_RETIREMENTS = 256;
+
+        private final ArrayDeque<RetireEpoch> openEpochs = new ArrayDeque<>();
+        private final ConcurrentLinkedQueue<TreeNode<K,V>> freeChains = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<LocalPool> local = ThreadLocal.withInitial(LocalPool::new);
+        private volatile RetireEpoch current;
+
+        private NodeRecycler() {
+            current = new RetireEpoch();
+            openEpochs.add(current);
+        }
+
+        private Epoch.Ticket enter() {
+            while(true){
+                Epoch.Ticket ticket = current.attemptArrive();
+                if(ticket != null) return ticket;
+            }
+        }
+
+        private void retire(TreeNode<K,V> node) {
+            RetireEpoch epoch = current;
+            TreeNode<K,V> head;
+            do {
+                head = epoch.retired.get();
+                node.nextFree = head;
+            } while(!epoch.retired.compareAndSet(head, node));
+            if(epoch.retiredCount.incrementAndGet() == EPOCH_RETIREMENTS) advance(epoch);
+        }
+
+        private void advance(RetireEpoch epoch) {
+            synchronized(this){
+                if(current != epoch) return;
+                current = new RetireEpoch();
+                openEpochs.add(current);
+            }
+            epoch.beginClose();
+        }
+
+        private synchronized void release() {
+            while(!openEpochs.isEmpty() && openEpochs.peek().closed){
+                TreeNode<K,V> chain = openEpochs.poll().retired.get();
+                if(chain != null) freeChains.add(chain);
+            }
+        }
+
+        private TreeNode<K,V> allocate(K key, V value) {
+            LocalPool pool = local.get();
+            if(pool.head == null) pool.head = freeChains.poll();
+            TreeNode<K,V> node = pool.head;
+            if(node == null) return createNode(key, value);
+            pool.head = node.nextFree;
+            node.nextFree = null;
+            node.reuse(key, value);
+            return node;
+        }
+
+        private class LocalPool {
+            private TreeNode<K,V> head;
+            private final TreeNodeVersion<K,V> searchState = fingerSearch ? newFingerState() : new TreeNodeVersion<>();
+        }
+
+        private class RetireEpoch extends Epoch {
+            private final AtomicReference<TreeNode<K,V>> retired = new AtomicReference<>();
+            private final AtomicInteger retiredCount = new AtomicInteger();
+            private volatile boolean closed;
+
+            @Override
+            protected void onClosed(int dataSum) {
+                closed = true;
+                release();
+            }
+        }
+    }
+
+    /**
+     * Number of updates that were applied together with a concurrent update
+     * of the same key instead of going to the tree on their own.
+     */
+    public long eliminatedCount() {
+        return elimination == null ? 0 : elimination.eliminated.sum();
+    }
+
+    /**
+     * Updates of a hot key serialize on its node, and when they insert and
+     * unlink it in turn they also keep invalidating each other's searches.
+     * An update whose first attempt fails validation therefore offers itself
+     * in a slot chosen by its key and waits briefly. A second update of the
+     * same key that finds the offer takes it and applies only its own update
+     * to the tree; the offer is linearized immediately before that update. It
+     * returns the value the tree held, and the second update returns the
+     * offered put's value (null for an offered remove), so the pair costs one
+     * tree update.
+     */
+    private class Elimination {
+        private static final int WAIT_SPINS = 256;
+        private static final int YIELD_MASK = 15;
+
+        private final AtomicReferenceArray<Offer<K,V>> slots;
+        private final LongAdder eliminated = new LongAdder();
+
+        private Elimination() {
+            int slotCount = 8;
+            while(slotCount < 2 * Runtime.getRuntime().availableProcessors()) slotCount <<= 1;
+            slots = new AtomicReferenceArray<>(slotCount);
+        }
+
+        private V update(K key, V value, boolean put) {
+            int index = slot(key);
+            V result = takeOffer(index, key, value, put);
+            if(result != CONTENDED) return result;
+            result = apply(key, value, put, 1);
+            if(result != CONTENDED) return result;
+            Offer<K,V> offer = new Offer<>(key, value, put);
+            if(slots.compareAndSet(index, null, offer)) {
+                for(int spin = 1; spin <= WAIT_SPINS; ++spin){
+                    if(offer.done) return offer.result();
+                    if((spin & YIELD_MASK) == 0) Thread.yield();
+                }
+                if(!slots.compareAndSet(index, offer, null)) {
+                    while(!offer.done) Thread.yield();
+                    return offer.result();
+                }
+            } else {
+                result = takeOffer(index, key, value, put);
+                if(result != CONTENDED) return result;
+            }
+            return apply(key, value, put, UNBOUNDED);
+        }
+
+        /**
+         * Applies this update to the tree on behalf of both, if the slot holds
+         * an offer for the same key; returns CONTENDED otherwise.
+         */
+        private V takeOffer(int index, K key, V value, boolean put) {
+            Offer<K,V> offer = slots.get(index);
+            if(offer == null || offer.key.compareTo(key) != 0) return contended();
+            if(!slots.compareAndSet(index, offer, null)) return contended();
+            V oldValue;
+            try {
+                oldValue = apply(key, value, put, UNBOUNDED);
+            } catch (RuntimeException | Error e) {
+                offer.fail(e);
+                throw e;
+            }
+            offer.complete(oldValue);
+            eliminated.add(2);
+            return offer.put ? offer.value : null;
+        }
+
+        private V apply(K key, V value, boolean put, int attempts) {
+            TreeNodeVersion<K,V> outNode = searchState();
+            return put ? putInTree(key, value, attempts, outNode) : removeFromTree(key, attempts, outNode);
+        }
+
+        private int slot(K key) {
+            int h = key.hashCode();
+            h ^= (h >>> 16);
+            return h & (slots.length() - 1);
+        }
+    }
+
+    /**
+     * Number of updates a combiner applied on behalf of another thread.
+     */
+    public long combinedCount() {
+        return combiner == null ? 0 : combiner.combined.sum();
+    }
+
+    /**
+     * Under a write-heavy load on a small tree every update locks and bumps
+     * the versions of the same few nodes near the root, and the searches of
+     * the others keep failing validation on them. With FLAT_COMBINING an
+     * update is instead published in its thread's slot. The thread that gets
+     * the combiner lock takes every published update, sorts them by key and
+     * applies them one after the other through a {@link Finger}, so that
+     * neighbouring keys share the upper part of their search path; the others
+     * spin until their update is done or the lock is free. The combiner goes
+     * through the ordinary locking protocol, so lookups, range iterators,
+     * purging and maintenance run alongside it unchanged. A thread whose slot
+     * is taken by another thread mapped to the same slot updates the tree
+     * directly.
+     */
+    private class Combiner {
+        private static final int YIELD_MASK = 15;
+
+        private final AtomicReferenceArray<Offer<K,V>> slots;
+        private final AtomicInteger nextSlot = new AtomicInteger();
+        private final ThreadLocal<Integer> slot;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LongAdder combined = new LongAdder();
+        private final Comparator<Offer<K,V>> byKey = (a, b) -> a.key.compareTo(b.key);
+        private final TreeNodeVersion<K,V> search = new TreeNodeVersion<>();
+        private final List<Offer<K,V>> batch;
+
+        private Combiner() {
+            int slotCount = 8;
+            while(slotCount < 2 * Runtime.getRuntime().availableProcessors()) slotCount <<= 1;
+            slots = new AtomicReferenceArray<>(slotCount);
+            batch = new ArrayList<>(slotCount);
+            final int mask = slotCount - 1;
+            slot = ThreadLocal.withInitial(() -> nextSlot.getAndIncrement() & mask);
+            search.finger = new Finger<>();
+        }
+
+        private V update(K key, V value, boolean put) {
+            int index = slot.get();
+            Offer<K,V> request = new Offer<>(key, value, put);
+            if(!slots.compareAndSet(index, null, request)) {
+                TreeNodeVersion<K,V> outNode = searchState();
+                return put ? putInTree(key, value, UNBOUNDED, outNode) : removeFromTree(key, UNBOUNDED, outNode);
+            }
+            for(int spin = 1; !request.done; ++spin){
+                if(lock.tryLock()) {
+                    try {
+                        combine();
+                    } finally {
+                        lock.unlock();
+                    }
+                } else if((spin & YIELD_MASK) == 0) Thread.yield();
+            }
+            return request.result();
+        }
+
+        /**
+         * Called with the lock held. The caller's own request is always in the
+         * batch: it was published before the lock was taken, and every request
+         * an earlier combiner took was done before that combiner unlocked.
+         */
+        private void combine() {
+            for(int i = 0; i < slots.length(); ++i){
+                Offer<K,V> request = slots.get(i);
+                if(request == null) continue;
+                slots.set(i, null);
+                batch.add(request);
+            }
+            batch.sort(byKey);
+            for(Offer<K,V> request : batch){
+                try {
+                    request.complete(request.put
+                            ? putInTree(request.key, request.value, UNBOUNDED, search)
+                            : removeFromTree(request.key, UNBOUNDED, search));
+                } catch (RuntimeException | Error e) {
+                    request.fail(e);
+                }
+            }
+            combined.add(batch.size() - 1);
+            batch.clear();
+        }
+    }
+
+    private static class Offer<K,V> {
+        private final K key;
+        private final V value;
+        private final boolean put;
+        private V result;
+        private Throwable failure;
+        private volatile boolean done;
+
+        private Offer(K key, V value, boolean put) {
+            this.key = key;
+            this.value = value;
+            this.put = put;
+        }
+
+        private void complete(V result) {
+            this.result = result;
+            done = true;
+        }
+
+        private void fail(Throwable failure) {
+            this.failure = failure;
+            done = true;
+        }
+
+        private V result() {
+            if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if(failure instanceof Error) throw (Error) failure;
+            return result;
+        }
+    }
+
+    /**
+     * Runs body as one atomic transaction over the keys it reads and writes
+     * through the given {@link Transaction}. Reads go to the tree and are
+     * recorded with the version of the node they were answered by; writes are
+     * buffered in the transaction. Every read also validates the reads before
+     * it, so body only ever sees a consistent snapshot, and a read-only
+     * transaction is complete once body returns: it never marks a node.
+     *
+     * A transaction that wrote something commits by inserting a tombstoned
+     * placeholder for each key it puts that had no node, marking every node
+     * it read or writes in key order, checking that each still has the
+     * version it was read at, and writing the new values while the marks
+     * keep out every other writer. The value stamps of the nodes it writes
+     * stay odd until the last value is written, so a reader of one of those
+     * keys waits for the commit, and readers of other keys never do. When a
+     * check fails, or a read finds that
+     * an earlier one no longer holds, the marks are dropped and body runs
+     * again, so it must not have side effects beyond the transaction. Plain
+     * operations may be mixed with transactions, but those that body makes
+     * on the map are not part of it.
+     */
+    public void transaction(Consumer<Transaction> body) {
+        Set<K> unlinkIfRemoved = new HashSet<>();
+        try {
+            for(boolean retry = false;; retry = true){
+                if(retry) {
+                    transactionRetries.increment();
+                    Thread.yield();
+                }
+                Transaction tx = new Transaction();
+                try {
+                    body.accept(tx);
+                } catch (Conflict e) {
+                    continue;
+                }
+                if(tx.conflict) continue;
+                if(tx.writes.isEmpty() || tx.commit(unlinkIfRemoved)) return;
+            }
+        } finally {
+            if(!lazyRemoval) {
+                for(K key : unlinkIfRemoved){
+                    Epoch.Ticket ticket = enter();
+                    try {
+                        unlink(key, true, ANY_EXPIRY, UNBOUNDED, searchState());
+                    } finally {
+                        exit(ticket);
+                    }
+                }
+            } else {
+                purgeIfCrowded();
+            }
+        }
+    }
+
+    /**
+     * Number of times a transaction body was run again after a conflict.
+     */
+    public long transactionRetryCount() {
+        return transactionRetries.sum();
+    }
+
+    /**
+     * The view of the map inside {@link #transaction}. It sees its own writes
+     * and must not be used once body has returned.
+     */
+    public final class Transaction {
+        private final TreeMap<K,Object> writes = new TreeMap<>();
+        private final TreeMap<K,TxRead<K,V>> reads = new TreeMap<>();
+        private final TreeNodeVersion<K,V> search = new TreeNodeVersion<>();
+        private boolean conflict;
+
+        private Transaction() {
+        }
+
+        public V get(K key) {
+            Object value = read(key);
+            return value == TOMBSTONE ? null : (V) value;
+        }
+
+        public boolean containsKey(K key) {
+            return read(key) != TOMBSTONE;
+        }
+
+        public V put(K key, V value) {
+            if(value == null) throw new NullPointerException();
+            V oldValue = get(key);
+            writes.put(key, value);
+            return oldValue;
+        }
+
+        public V remove(K key) {
+            V oldValue = get(key);
+            writes.put(key, TOMBSTONE);
+            return oldValue;
+        }
+
+        private Object read(K key) {
+            if(key == null) throw new NullPointerException();
+            if(writes.containsKey(key)) return writes.get(key);
+            TxRead<K,V> read = reads.get(key);
+            if(read == null) {
+                read = readTree(key);
+                reads.put(key, read);
+            }
+            return read.value;
+        }
+
+        /**
+         * Reads like {@link #lookup}, then checks that no earlier read has
+         * moved, so all of them held when this one was made.
+         */
+        private TxRead<K,V> readTree(K key) {
+            Epoch.Ticket ticket = enter();
+            try {
+                while(true){
+                    if(!root.findClosestNode(key, search)) continue;
+                    TreeNode<K,V> node = search.node;
+                    Object value;
+                    int stamp;
+                    node.lock();
+                    try {
+                        if(node.version != search.nVersion) continue;
+                        if(node.keysEqual(key) != search.foundExactly) continue;
+                        value = search.foundExactly && !node.isExpired() ? node.value : TOMBSTONE;
+                        stamp = node.valueStamp;
+                    } finally {
+                        node.unlock();
+                    }
+                    if((stamp & 1) != 0) {
+                        // another commit is writing its values
+                        Thread.yield();
+                        continue;
+                    }
+                    for(TxRead<K,V> read : reads.values()){
+                        if(read.moved()) {
+                            conflict = true;
+                            throw Conflict.INSTANCE;
+                        }
+                    }
+                    return new TxRead<>(node, search.nVersion, stamp, search.foundExactly, value);
+                }
+            } finally {
+                exit(ticket);
+            }
+        }
+
+        /**
+         * Returns false, with nothing written, if a check fails. Keys whose
+         * node may be left holding a tombstone are added to unlinkIfRemoved.
+         */
+        private boolean commit(Set<K> unlinkIfRemoved) {
+            Epoch.Ticket ticket = enter();
+            ArrayList<TreeNode<K,V>> marked = new ArrayList<>();
+            try {
+                for(Map.Entry<K,Object> write : writes.entrySet()){
+                    K key = write.getKey();
+                    if(!reads.get(key).found && write.getValue() != TOMBSTONE && insertPlaceholder(key, search)) {
+                        unlinkIfRemoved.add(key);
+                    }
+                }
+                IdentityHashMap<TreeNode<K,V>,TxCheck<K,V>> checks = new IdentityHashMap<>();
+                ArrayList<TreeNode<K,V>> targets = new ArrayList<>();
+                ArrayList<Object> values = new ArrayList<>();
+                for(Map.Entry<K,TxRead<K,V>> entry : reads.entrySet()){
+                    K key = entry.getKey();
+                    TxRead<K,V> read = entry.getValue();
+                    Object value = writes.containsKey(key) ? writes.get(key) : read.value;
+                    if(value == read.value || read.found) {
+                        if(!addCheck(checks, read.node, read.versionCheck(), read.stampCheck(), false)) return false;
+                        if(value == read.value) continue;
+                        targets.add(read.node);
+                    } else {
+                        // read as absent: the placeholder must still be a tombstone
+                        while(!findClosestNode(key, search)) {}
+                        if(!search.foundExactly) return false;
+                        if(!addCheck(checks, search.node, TxCheck.ANY_VERSION, TxCheck.ANY_STAMP, true)) return false;
+                        targets.add(search.node);
+                    }
+                    values.add(value);
+                }
+                List<TxCheck<K,V>> ordered = new ArrayList<>(checks.values());
+                ordered.sort((a, b) -> a.node == root ? -1 : b.node == root ? 1 : a.node.key.compareTo(b.node.key));
+                for(TxCheck<K,V> check : ordered){
+                    TreeNode<K,V> node = check.node;
+                    node.lock();
+                    try {
+                        if(node.isMarked()) return false;
+                        if(check.version != TxCheck.ANY_VERSION && node.version != check.version) return false;
+                        if(check.stamp != TxCheck.ANY_STAMP && node.valueStamp != check.stamp) return false;
+                        if(check.tombstone && node.value != TOMBSTONE) return false;
+                        node.setChanging();
+                        marked.add(node);
+                    } finally {
+                        node.unlock();
+                    }
+                }
+                // the stamps stay odd until every value is written, so no
+                // reader of a target sees the commit half done
+                for(TreeNode<K,V> node : targets){
+                    node.lock();
+                    try {
+                        node.beginValueWrite();
+                    } finally {
+                        node.unlock();
+                    }
+                }
+                try {
+                    for(int i = 0; i < targets.size(); ++i){
+                        TreeNode<K,V> node = targets.get(i);
+                        V value = (V) values.get(i);
+                        node.lock();
+                        try {
+                            // a clear since the marks were taken came after
+                            // this commit, and took its writes with the tree
+                            if(node.isDeleted()) continue;
+                            if(node.value != value) publishChange(node.key, value == TOMBSTONE ? null : value);
+                            V oldValue = setValue(node, value);
+                            if(oldValue == TOMBSTONE && value != TOMBSTONE) {
+                                removedCount.decrementAndGet();
+                                incrementSize();
+                            } else if(oldValue != TOMBSTONE && value == TOMBSTONE) {
+                                removedCount.incrementAndGet();
+                                decrementSize();
+                                unlinkIfRemoved.add(node.key);
+                            }
+                        } finally {
+                            node.unlock();
+                        }
+                    }
+                } finally {
+                    for(TreeNode<K,V> node : targets){
+                        node.lock();
+                        try {
+                            node.endValueWrite();
+                        } finally {
+                            node.unlock();
+                        }
+                    }
+                }
+                return true;
+            } finally {
+                for(int i = marked.size() - 1; i >= 0; --i) marked.get(i).unsetChanging();
+                exit(ticket);
+            }
+        }
+    }
+
+    /**
+     * Merges the check of a node with one already required of it. Two
+     * different versions or stamps mean the node moved between the reads.
+     */
+    private static <K extends Comparable<K>,V> boolean addCheck(Map<TreeNode<K,V>,TxCheck<K,V>> checks,
+            TreeNode<K,V> node, long version, int stamp, boolean tombstone) {
+        TxCheck<K,V> check = checks.get(node);
+        if(check == null) {
+            checks.put(node, new TxCheck<>(node, version, stamp, tombstone));
+            return true;
+        }
+        if(version != TxCheck.ANY_VERSION) {
+            if(check.version != TxCheck.ANY_VERSION && check.version != version) return false;
+            check.version = version;
+        }
+        if(stamp != TxCheck.ANY_STAMP) {
+            if(check.stamp != TxCheck.ANY_STAMP && check.stamp != stamp) return false;
+            check.stamp = stamp;
+        }
+        check.tombstone |= tombstone;
+        return true;
+    }
+
+    /**
+     * Inserts a tombstone for key if it has no node, so that a transaction
+     * putting key has a node to mark. Returns whether it inserted one.
+     */
+    private boolean insertPlaceholder(K key, TreeNodeVersion<K,V> outNode) {
+        while(true){
+            if(!findClosestNode(key, outNode)) continue;
+            if(outNode.foundExactly) return false;
+            TreeNode<K,V> node = outNode.node;
+            node.lock();
+            try {
+                if(!outNode.validate()) continue;
+                if(node.isMarked()) continue;
+                if(node.keysEqual(key)) continue;
+                ChildDir dir = node.getDirection(key);
+                if(node.getChild(dir) != null) continue;
+                TreeNode<K,V> placeholder = newNode(key, tombstone());
+                node.setChild(dir, placeholder);
+                indexNode(placeholder);
+                removedCount.incrementAndGet();
+                return true;
+            } finally {
+                node.unlock();
+            }
+        }
+    }
+
+    /**
+     * A key found holds as long as its node keeps its value stamp and is not
+     * unlinked; a key read as absent, as long as the node where its search
+     * ended keeps its version, since a node linked below would move it.
+     */
+    private static class TxRead<K extends Comparable<K>,V> {
+        private final TreeNode<K,V> node;
+        private final long version;
+        private final int stamp;
+        private final boolean found;
+        private final Object value;
+
+        private TxRead(TreeNode<K,V> node, long version, int stamp, boolean found, Object value) {
+            this.node = node;
+            this.version = version;
+            this.stamp = stamp;
+            this.found = found;
+            this.value = value;
+        }
+
+        private boolean moved() {
+            if(!found) return node.version != version;
+            return node.valueStamp != stamp || node.isDeleted();
+        }
+
+        private long versionCheck() {
+            return found ? TxCheck.ANY_VERSION : version;
+        }
+
+        private int stampCheck() {
+            return found ? stamp : TxCheck.ANY_STAMP;
+        }
+    }
+
+    /**
+     * What commit requires of a node: its version, its value stamp, or that
+     * it holds a tombstone. Each may be left open.
+     */
+    private static class TxCheck<K extends Comparable<K>,V> {
+        private static final long ANY_VERSION = -1;
+        private static final int ANY_STAMP = -1;
+
+        private final TreeNode<K,V> node;
+        private long version;
+        private int stamp;
+        private boolean tombstone;
+
+        private TxCheck(TreeNode<K,V> node, long version, int stamp, boolean tombstone) {
+            this.node = node;
+            this.version = version;
+            this.stamp = stamp;
+            this.tombstone = tombstone;
+        }
+    }
+
+    /**
+     * Thrown out of a transaction body whose reads no longer hold, to run it
+     * again. Preallocated and without a stack trace, as it is only control
+     * flow.
+     */
+    private static final class Conflict extends RuntimeException {
+        private static final long serialVersionUID = 1298329693407876784L;
+        private static final Conflict INSTANCE = new Conflict();
+
+        private Conflict() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Starts a daemon thread that every periodMillis unlinks tombstoned nodes,
+     * rotates the most unbalanced subtrees and publishes depth statistics.
+     * cpuBudget is the fraction of one core the thread may use, in (0, 1].
+     * Rotations are skipped while a range iterator is open.
+     */
+    public synchronized void startMaintenance(long periodMillis, double cpuBudget) {
+        if(periodMillis <= 0) throw new IllegalArgumentException("periodMillis must be positive");
+        if(!(cpuBudget > 0 && cpuBudget <= 1)) throw new IllegalArgumentException("cpuBudget must be in (0, 1]");
+        if(maintenance != null) throw new IllegalStateException("maintenance is already running");
+        maintenance = new Maintenance(periodMillis, cpuBudget);
+        maintenance.start();
+    }
+
+    public void stopMaintenance() {
+        Maintenance running;
+        synchronized(this){
+            running = maintenance;
+            maintenance = null;
+        }
+        if(running == null) return;
+        running.interrupt();
+        boolean interrupted = false;
+        while(running.isAlive()) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Statistics of the last completed maintenance pass.
+     */
+    public MaintenanceStats getMaintenanceStats() {
+        return maintenanceStats;
+    }
+
+    /**
+     * Sum of the depths of all nodes, tombstones included. Walks the tree
+     * without locks, so it is only exact when there are no concurrent updates.
+     */
+    public long getSumOfDepths() {
+        long sum = 0;
+        ArrayDeque<TreeNode<K,V>> nodes = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        nodes.push(root);
+        depths.push(0);
+        Epoch.Ticket ticket = enter();
+        try {
+            while(!nodes.isEmpty()){
+                TreeNode<K,V> node = nodes.pop();
+                int depth = depths.pop();
+                sum += depth;
+                TreeNode<K,V> left = node.left, right = node.right;
+                if(left != null) { nodes.push(left); depths.push(depth + 1); }
+                if(right != null) { nodes.push(right); depths.push(depth + 1); }
+            }
+        } finally {
+            exit(ticket);
+        }
+        return sum;
+    }
+
+    public static final class MaintenanceStats {
+        public final long passes;
+        public final long nodes;
+        public final long sumOfDepths;
+        public final int maxDepth;
+        public final long rotations;
+        public final long purged;
+        public final long expired;
+
+        private MaintenanceStats(long passes, long nodes, long sumOfDepths, int maxDepth, long rotations, long purged,
+                long expired) {
+            this.passes = passes;
+            this.nodes = nodes;
+            this.sumOfDepths = sumOfDepths;
+            this.maxDepth = maxDepth;
+            this.rotations = rotations;
+            this.purged = purged;
+            this.expired = expired;
+        }
+
+        public double averageDepth() {
+            return nodes == 0 ? 0 : sumOfDepths / (double) nodes;
+        }
+
+        @Override
+        public String toString() {
+            return "passes=" + passes + " nodes=" + nodes + " avgDepth=" + averageDepth()
+                    + " maxDepth=" + maxDepth + " rotations=" + rotations + " purged=" + purged + " expired=" + expired;
+        }
+    }
+
+    private class Maintenance extends Thread {
+        private static final int SLICE = 256;
+
+        private final long periodMillis;
+        private final double cpuBudget;
+        private long passes, rotations, purged, expired;
+        private long sliceStart;
+        private int sliceNodes;
+
+        private Maintenance(long periodMillis, double cpuBudget) {
+            super("BLTreeMap-maintenance");
+            setDaemon(true);
+            this.periodMillis = periodMillis;
+            this.cpuBudget = cpuBudget;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(!isInterrupted()){
+                    sliceStart = System.nanoTime();
+                    sliceNodes = 0;
+                    if(expiryIndex != null) expired += purgeExpired();
+                    if(removedCount.get() > 0) {
+                        purged += purgeRemoved();
+                        pace();
+                    }
+                    Epoch.Ticket ticket = enter();
+                    try {
+                        rebalance();
+                    } finally {
+                        exit(ticket);
+                    }
+                    ++passes;
+                    Thread.sleep(periodMillis);
+                }
+            } catch (InterruptedException e) {
+                // stopMaintenance
+            }
+        }
+
+        private void pace() throws InterruptedException {
+            long work = System.nanoTime() - sliceStart;
+            long pause = (long) (work * (1 - cpuBudget) / cpuBudget);
+            if(pause > 0) Thread.sleep(pause / 1000000, (int) (pause % 1000000));
+            if(isInterrupted()) throw new InterruptedException();
+            sliceStart = System.nanoTime();
+            sliceNodes = 0;
+        }
+
+        /**
+         * One post-order pass that refreshes the height hints bottom-up and
+         * rotates every node whose subtrees differ in height by more than one.
+         */
+        private void rebalance() throws InterruptedException {
+            ArrayDeque<Frame> stack = new ArrayDeque<>();
+            long nodes = 0, sumOfDepths = 0;
+            int maxDepth = 0;
+            TreeNode<K,V> top = root.right;
+            if(top != null) stack.push(new Frame(root, ChildDir.Right, top, 0));
+            while(!stack.isEmpty()){
+                Frame frame = stack.peek();
+                if(!frame.expanded){
+                    frame.expanded = true;
+                    TreeNode<K,V> left = frame.node.left, right = frame.node.right;
+                    if(left != null) stack.push(new Frame(frame.node, ChildDir.Left, left, frame.depth + 1));
+                    if(right != null) stack.push(new Frame(frame.node, ChildDir.Right, right, frame.depth + 1));
+                    continue;
+                }
+                stack.pop();
+                ++nodes;
+                sumOfDepths += frame.depth;
+                if(frame.depth > maxDepth) maxDepth = frame.depth;
+                balance(frame.parent, frame.dir, frame.node);
+                if(++sliceNodes == SLICE) pace();
+            }
+            maintenanceStats = new MaintenanceStats(passes + 1, nodes, sumOfDepths, maxDepth, rotations, purged, expired);
+        }
+
+        private void balance(TreeNode<K,V> parent, ChildDir dir, TreeNode<K,V> node) {
+            TreeNode<K,V> left = node.left, right = node.right;
+            int leftHeight = height(left), rightHeight = height(right);
+            ChildDir side = ChildDir.None;
+            if(leftHeight > rightHeight + 1) {
+                if(height(left.right) > height(left.left) && rotate(node, ChildDir.Left, left, ChildDir.Right)) ++rotations;
+                side = ChildDir.Left;
+            } else if(rightHeight > leftHeight + 1) {
+                if(height(right.left) > height(right.right) && rotate(node, ChildDir.Right, right, ChildDir.Left)) ++rotations;
+                side = ChildDir.Right;
+            }
+            if(side != ChildDir.None && rotate(parent, dir, node, side)) ++rotations;
+            else updateHeight(node);
+        }
+    }
+
+    private int height(TreeNode<K,V> node) {
+        return node == null ? 0 : node.getHeight();
+    }
+
+    private int childHeight(TreeNode<K,V> node) {
+        return 1 + Math.max(height(node.left), height(node.right));
+    }
+
+    private void updateHeight(TreeNode<K,V> node) {
+        int height = childHeight(node);
+        if(height == node.getHeight()) return;
+        node.lock();
+        try {
+            if(!node.isMarked()) node.setHeight(height);
+        } finally {
+            node.unlock();
+        }
+    }
+
+    /**
+     * Lifts node's child on the given side into node's place under parent.
+     * node keeps its key range only until it is unlinked, so it is replaced by
+     * a fresh copy and marked deleted: optimistic readers standing on it fail
+     * validation and restart from above instead of continuing into a subtree
+     * that no longer covers their key.
+     */
+    private boolean rotate(TreeNode<K,V> parent, ChildDir dir, TreeNode<K,V> node, ChildDir side) {
+        parent.lock();
+        try {
+            if(parent.isMarked() || parent.getChild(dir) != node) return false;
+            node.lock();
+            try {
+                if(node.isMarked()) return false;
+                TreeNode<K,V> child = node.getChild(side);
+                if(child == null) return false;
+                child.lock();
+                try {
+                    if(child.isMarked() || activeRangeIterators.get() != 0) return false;
+                    ChildDir other = side == ChildDir.Left ? ChildDir.Right : ChildDir.Left;
+                    TreeNode<K,V> copy = newNode(node.key, node.value);
+                    copy.setExpiresAt(node.expiresAt());
+                    copy.setChild(side, child.getChild(other));
+                    copy.setChild(other, node.getChild(other));
+                    copy.setHeight(childHeight(copy));
+                    child.setChild(other, copy);
+                    child.setHeight(childHeight(child));
+                    node.setDeleted();
+                    parent.setChild(dir, child);
+                    indexNode(copy);
+                    retire(node);
+                    return true;
+                } finally {
+                    child.unlock();
                 }
+            } finally {
+                node.unlock();
             }
-            decrementSize();
-            return true;
         } finally {
-            while(!setChangingStack.isEmpty()) setChangingStack.pop().unsetChanging();
+            parent.unlock();
         }
     }
-    
+
+    private class Frame {
+        private final TreeNode<K,V> parent;
+        private final ChildDir dir;
+        private final TreeNode<K,V> node;
+        private final int depth;
+        private boolean expanded;
+
+        private Frame(TreeNode<K,V> parent, ChildDir dir, TreeNode<K,V> node, int depth) {
+            this.parent = parent;
+            this.dir = dir;
+            this.node = node;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The entries of a SortedMap in natural order are put in ascending order
+     * through one {@link Finger}, like {@link #applySorted}; any other map is
+     * put entry by entry.
+     */
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
+        if(m instanceof SortedMap && ((SortedMap<? extends K, ? extends V>) m).comparator() == null) {
+            TreeNodeVersion<K,V> outNode = newFingerState();
+            for(Map.Entry<? extends K, ? extends V> entry : m.entrySet()){
+                putInTree(entry.getKey(), entry.getValue(), UNBOUNDED, outNode);
+            }
+            return;
+        }
         m.entrySet().stream().forEach((entry) -> {
             put(entry.getKey(), entry.getValue());
         });
     }
     
+    /**
+     * Compares the mappings in key order. Against another BLTreeMap both trees
+     * are walked side by side and the walk stops at the first mismatch;
+     * against any other map each of our entries is looked up in it. No entry
+     * copies are made in either case.
+     */
     @Override
     public boolean equals(Object other){
-        Map<K,V> otherMap = (Map<K,V>) other;
-        return this.entrySet().equals(otherMap.entrySet());
+        if(other == this) return true;
+        if(!(other instanceof Map)) return false;
+        Map<?,?> otherMap = (Map<?,?>) other;
+        if(otherMap.size() != size()) return false;
+        try {
+            if(other instanceof BLTreeMap) return equalsInOrder((BLTreeMap<K,V>) other);
+            for(Cursor cursor = new Cursor(); cursor.hasNext; cursor.moveNext()){
+                Object otherValue = otherMap.get(cursor.nextKey);
+                if(otherValue == null && !otherMap.containsKey(cursor.nextKey)) return false;
+                if(!Objects.equals(cursor.nextValue, otherValue)) return false;
+            }
+            return true;
+        } catch (ClassCastException | NullPointerException e) {
+            return false;
+        }
+    }
+
+    private boolean equalsInOrder(BLTreeMap<K,V> other){
+        Cursor mine = new Cursor();
+        BLTreeMap<K,V>.Cursor theirs = other.new Cursor();
+        while(mine.hasNext && theirs.hasNext){
+            if(mine.nextKey.compareTo(theirs.nextKey) != 0) return false;
+            if(!Objects.equals(mine.nextValue, theirs.nextValue)) return false;
+            mine.moveNext();
+            theirs.moveNext();
+        }
+        return mine.hasNext == theirs.hasNext;
     }
     
     @Override
     public int hashCode(){
-        return this.entrySet().hashCode();
+        int hash = 0;
+        for(Cursor cursor = new Cursor(); cursor.hasNext; cursor.moveNext()){
+            hash += Objects.hashCode(cursor.nextKey) ^ Objects.hashCode(cursor.nextValue);
+        }
+        return hash;
     }
 
+    /**
+     * Unlinks the whole tree and then marks every node of it deleted, top
+     * down, each under its own lock. An update that validated a node before
+     * it was marked has finished by the time the mark is taken, and its
+     * new node is marked in turn; one that comes later fails validation and
+     * restarts from the empty root. So no insert lands in the unlinked tree
+     * after the counters and indexes below are reset.
+     */
     @Override
     public void clear() {
-        final TreeNode instRoot = this.root;
-        synchronized (instRoot) {
+        final TreeNode<K,V> instRoot = this.root;
+        instRoot.lock();
+        try {
+            publishChange(null, null);
+            TreeNode<K,V> left = root.left;
+            TreeNode<K,V> right = root.right;
             root.setChild(ChildDir.Left, null);
             root.setChild(ChildDir.Right, null);
-            synchronized (sizeLock){
-                size = 0;
+            markDeleted(left);
+            markDeleted(right);
+            size.set(0);
+            removedCount.set(0);
+            if(valueIndex != null) valueIndex.clear();
+            if(expiryIndex != null) expiryIndex.clear();
+            if(nodeIndex != null) nodeIndex.clear();
+        } finally {
+            instRoot.unlock();
+        }
+    }
+
+    private static <K extends Comparable<K>,V> void markDeleted(TreeNode<K,V> top) {
+        ArrayDeque<TreeNode<K,V>> pending = new ArrayDeque<>();
+        if(top != null) pending.push(top);
+        while(!pending.isEmpty()){
+            TreeNode<K,V> node = pending.pop();
+            node.lock();
+            try {
+                node.setDeleted();
+                if(node.left != null) pending.push(node.left);
+                if(node.right != null) pending.push(node.right);
+            } finally {
+                node.unlock();
             }
         }
     }
 
+    /**
+     * Returns a live view of the keys. The view is backed by the tree: its
+     * iterator walks the keys in ascending order without marking any node,
+     * and contains/remove/size delegate to the map. Iteration is weakly
+     * consistent, like the iterators of java.util.concurrent maps.
+     */
     @Override
     public Set<K> keySet() {
-        Set<Map.Entry<K, V>> entries = entrySet();
-        Set<K> keys = new HashSet<>();
-        entries.stream().forEach((entry) -> {
-            keys.add(entry.getKey());
-        });
-        return keys;
+        return new KeySetView();
     }
 
+    /**
+     * Returns a live view of the values, ordered by key. See {@link #keySet()}.
+     */
     @Override
     public Collection<V> values() {
-        Set<Map.Entry<K, V>> entries = entrySet();
-        Collection<V> values = new ArrayList<>();
-        entries.stream().forEach((entry) -> {
-            values.add(entry.getValue());
-        });
-        return values;
+        return new ValuesView();
     }
 
+    /**
+     * Returns a live view of the mappings, ordered by key. See {@link #keySet()}.
+     * Use {@link #entryIterator()} for an atomic traversal of the whole tree.
+     */
     @Override
     public Set<Map.Entry<K, V>> entrySet() {
-        return entrySet(null, null, true);
+        return new EntrySetView();
     }
 
     public Set<K> keySet(K min, K max) {
@@ -270,8 +2171,10 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
     }
 
     private Iterator<Map.Entry<K, V>> entryIterator(K min, K max, boolean allTree) {                
+        Epoch.Ticket ticket = enter();
+        activeRangeIterators.incrementAndGet();
         while(!this.root.setChangingRange(min, max, allTree)){}       
-        return new RangeIterator(min, max, allTree);
+        return new RangeIterator(min, max, allTree, ticket);
     }
     
     private class RangeIterator implements Iterator<Map.Entry<K,V>>
@@ -280,21 +2183,25 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
         private final K max;
         private final boolean allTree;
         
-        private final Stack<TreeNode> nodeStack;
+        private final Stack<TreeNode<K,V>> nodeStack;
         
+        private final Epoch.Ticket ticket;
+
         private boolean hasNext;
-        private TreeNode next;
+        private TreeNode<K,V> next;
         
-        public RangeIterator(K min, K max, boolean allTree)
+        public RangeIterator(K min, K max, boolean allTree, Epoch.Ticket ticket)
         {
             this.min = min;
             this.max = max;
             this.allTree = allTree;
+            this.ticket = ticket;
             nodeStack = new Stack<>();
             if(allTree) root.unsetChanging();
-            TreeNode firstNode = root.getChild(root.getDirection(min));
+            TreeNode<K,V> firstNode = root.getChild(root.getDirection(min));
             if(firstNode == null) {
                 hasNext = false;
+                finish();
                 return;
             }
             nodeStack.push(firstNode);
@@ -309,26 +2216,37 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             hasNext = false;
             next = null;            
             
-            TreeNode current = null;
+            TreeNode<K,V> current = null;
             while(!nodeStack.isEmpty() && !(largerThanMin && smallerThanMax)){
                 current = nodeStack.pop();
 
                 largerThanMin = allTree || current.compareToKey(min) >= 0;
                 smallerThanMax = allTree || current.compareToKey(max) <= 0;
                 
-                TreeNode snapLeft = current.left;
-                TreeNode snapRight = current.right;
+                TreeNode<K,V> snapLeft = current.left;
+                TreeNode<K,V> snapRight = current.right;
                 if (largerThanMin && snapLeft != null) {
                     nodeStack.push(snapLeft);
                 }
                 if (smallerThanMax && snapRight != null) {
                     nodeStack.push(snapRight);
                 }
+                if (largerThanMin && smallerThanMax && (current.value == TOMBSTONE || current.isExpired())) {
+                    current.unsetChanging();
+                    largerThanMin = false;
+                }
             }
             if(largerThanMin && smallerThanMax) {
                 hasNext = true;
                 next = current;
-            }        
+            } else {
+                finish();
+            }
+        }
+
+        private void finish(){
+            activeRangeIterators.decrementAndGet();
+            exit(ticket);
         }
 
         @Override
@@ -340,26 +2258,335 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
         public Entry<K, V> next() 
         {
             if(!hasNext) throw new NoSuchElementException();
-            TreeNode result = next;
+            Map.Entry<K,V> result = new ViewEntry(next.key, next.getValue());
             moveNext();
             return result;
         }
     }
 
-    private class TreeNodeValue {
+    private class Cursor {
+        private Object[] stackNodes = new Object[16];
+        private long[] stackVersions = new long[16];
+        private int stackSize;
+
+        private TreeNode<K,V> node;
+        private long nodeVersion;
+
+        private final boolean includeRemoved;
+        private boolean hasNext;
+        private K nextKey;
+        private V nextValue;
+        private long nextExpiresAt;
+
+        public Cursor()
+        {
+            this(false);
+        }
+
+        public Cursor(boolean includeRemoved)
+        {
+            this(null, includeRemoved);
+        }
+
+        /**
+         * Starts at the least key not below fromKey, or at the lowest key if
+         * fromKey is null.
+         */
+        public Cursor(K fromKey, boolean includeRemoved)
+        {
+            this.includeRemoved = includeRemoved;
+            Epoch.Ticket ticket = enter();
+            try {
+                while(!seek(fromKey, true)){}
+                skipRemoved();
+            } finally {
+                exit(ticket);
+            }
+        }
+
+        /**
+         * Holds no epoch between calls: a node that was recycled in the
+         * meantime has a newer version, so step() and settle() fail on it and
+         * the cursor seeks again from the last key. A two-child removal links
+         * a copy of the successor before unlinking the original, so keys that
+         * do not follow the last one are skipped.
+         */
+        public void moveNext(){
+            Epoch.Ticket ticket = enter();
+            try {
+                K previous = nextKey;
+                advance();
+                while(hasNext && nextKey.compareTo(previous) <= 0) advance();
+                skipRemoved();
+            } finally {
+                exit(ticket);
+            }
+        }
+
+        private void advance(){
+            if(step()) return;
+            K fromKey = nextKey;
+            while(!seek(fromKey, false)){}
+        }
+
+        private void skipRemoved(){
+            if(includeRemoved) return;
+            while(hasNext && nextValue == TOMBSTONE) advance();
+        }
+
+        private boolean seek(K fromKey, boolean inclusive){
+            stackSize = 0;
+            TreeNode<K,V> current = root;
+            long currentV = root.version;
+            ChildDir dir = ChildDir.Right;
+            while(true){
+                if(current != root){
+                    int comparison = fromKey == null ? 1 : current.compareToKey(fromKey);
+                    if(comparison == 0 && inclusive) return settle(current, currentV);
+                    dir = comparison > 0 ? ChildDir.Left : ChildDir.Right;
+                    if(dir == ChildDir.Left) push(current, currentV);
+                }
+                TreeNode<K,V> child = current.getChild(dir);
+                long childV = child == null ? 0 : child.version;
+                if(current.version != currentV || current.isDeleted()) return false;
+                if(child == null) return pop();
+                current = child;
+                currentV = childV;
+            }
+        }
+
+        private boolean step(){
+            TreeNode<K,V> current = this.node;
+            long currentV = this.nodeVersion;
+            TreeNode<K,V> child = current.right;
+            long childV = child == null ? 0 : child.version;
+            if(current.version != currentV) return false;
+            while(child != null){
+                push(child, childV);
+                TreeNode<K,V> left = child.left;
+                long leftV = left == null ? 0 : left.version;
+                if(child.version != childV) return false;
+                child = left;
+                childV = leftV;
+            }
+            return pop();
+        }
+
+        private void push(TreeNode<K,V> pushed, long version){
+            if(stackSize == stackNodes.length){
+                stackNodes = Arrays.copyOf(stackNodes, stackSize * 2);
+                stackVersions = Arrays.copyOf(stackVersions, stackSize * 2);
+            }
+            stackNodes[stackSize] = pushed;
+            stackVersions[stackSize] = version;
+            ++stackSize;
+        }
+
+        private boolean pop(){
+            if(stackSize == 0){
+                hasNext = false;
+                node = null;
+                nextKey = null;
+                nextValue = null;
+                nextExpiresAt = NEVER;
+                return true;
+            }
+            --stackSize;
+            TreeNode<K,V> top = (TreeNode<K,V>) stackNodes[stackSize];
+            stackNodes[stackSize] = null;
+            return settle(top, stackVersions[stackSize]);
+        }
+
+        private boolean settle(TreeNode<K,V> candidate, long candidateV){
+            candidate.lock();
+            try {
+                if(candidate.version != candidateV || candidate.isDeleted()) return false;
+                nextKey = candidate.key;
+                nextValue = candidate.isExpired() ? tombstone() : candidate.value;
+                nextExpiresAt = candidate.expiresAt();
+            } finally {
+                candidate.unlock();
+            }
+            node = candidate;
+            nodeVersion = candidateV;
+            hasNext = true;
+            return true;
+        }
+    }
+
+    private abstract class ViewIterator<T> implements Iterator<T>
+    {
+        private final Cursor cursor = new Cursor();
+        private K lastKey;
+        private boolean canRemove;
+
+        protected abstract T current(K key, V value);
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext;
+        }
+
+        @Override
+        public T next() {
+            if(!cursor.hasNext) throw new NoSuchElementException();
+            T result = current(cursor.nextKey, cursor.nextValue);
+            lastKey = cursor.nextKey;
+            canRemove = true;
+            cursor.moveNext();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            if(!canRemove) throw new IllegalStateException();
+            BLTreeMap.this.remove(lastKey);
+            canRemove = false;
+        }
+    }
+
+    private class ViewEntry extends AbstractMap.SimpleEntry<K,V> {
+        private static final long serialVersionUID = -258017073581366265L;
+
+        public ViewEntry(K key, V value)
+        {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            BLTreeMap.this.put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    private class KeySetView extends AbstractSet<K> {
+        @Override
+        public Iterator<K> iterator() {
+            return new ViewIterator<K>() {
+                @Override
+                protected K current(K key, V value) {
+                    return key;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return BLTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return BLTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return BLTreeMap.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            BLTreeMap.this.clear();
+        }
+    }
+
+    private class ValuesView extends AbstractCollection<V> {
+        @Override
+        public Iterator<V> iterator() {
+            return new ViewIterator<V>() {
+                @Override
+                protected V current(K key, V value) {
+                    return value;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return BLTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return BLTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            BLTreeMap.this.clear();
+        }
+    }
+
+    private class EntrySetView extends AbstractSet<Map.Entry<K,V>> {
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new ViewIterator<Map.Entry<K,V>>() {
+                @Override
+                protected Map.Entry<K,V> current(K key, V value) {
+                    return new ViewEntry(key, value);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return BLTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return BLTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if(!(o instanceof Map.Entry)) return false;
+            Map.Entry<?,?> entry = (Map.Entry<?,?>) o;
+            V value = get(entry.getKey());
+            return value != null && value.equals(entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if(!(o instanceof Map.Entry)) return false;
+            Map.Entry<?,?> entry = (Map.Entry<?,?>) o;
+            return BLTreeMap.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void clear() {
+            BLTreeMap.this.clear();
+        }
+    }
+
+    private static class TreeNodeValue<K,V> {
         public boolean foundExactly;
         public V value;
     };
     
-    private class TreeNodeVersion {
+    private static class TreeNodeVersion<K extends Comparable<K>,V> {
         public boolean foundExactly;
         
-        public TreeNode parent;
-        public TreeNode node;
+        public TreeNode<K,V> parent;
+        public TreeNode<K,V> node;
         public long nVersion;
         public long pVersion;
         
         public ChildDir dir;
+
+        public Finger<K,V> finger;
         
         public boolean validate(){
             if(node.version != nVersion) return false;
@@ -368,13 +2595,13 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             return !(dir == ChildDir.This || parent.getChild(dir) != node);
         }
         
-        public void setParent(TreeNode parent, long version)
+        public void setParent(TreeNode<K,V> parent, long version)
         {
             this.parent = parent;
             this.pVersion = version;
         }
         
-        public void setParent(TreeNode parent)
+        public void setParent(TreeNode<K,V> parent)
         {
             this.parent = parent;
             this.pVersion = parent.version;
@@ -386,14 +2613,14 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             this.pVersion = 0;
         }
         
-        public void setNodeHard(TreeNode node, long version)
+        public void setNodeHard(TreeNode<K,V> node, long version)
         {
             unsetParent();
             this.node = node;
             this.nVersion = version;
         }
         
-        public void setNode(TreeNode node)
+        public void setNode(TreeNode<K,V> node)
         {
             this.node = node;
             this.nVersion = node.version;
@@ -406,12 +2633,228 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
         }
     }
 
-    private class TreeNode implements Map.Entry<K,V>{
-        private volatile K key;
+    /**
+     * The path of the previous search, with the range of keys each node on it
+     * covers. The next search resumes from the deepest node whose range holds
+     * its key instead of from the root. Keys are never written while a node is
+     * reachable and every change of a child link bumps the parent's version,
+     * so while no version on the path has moved the path and its ranges are
+     * still those of the tree. Like {@link TreeNode#findClosestNode} the whole
+     * path is validated once the search reaches its node, and a search that
+     * fails validation resumes above the first node that moved.
+     *
+     * A finger kept between operations may hold nodes that have since been
+     * unlinked, or even recycled under another key. Versions only move
+     * forward, so such a node no longer matches its recorded version and its
+     * level is dropped the first time the search reads it.
+     */
+    private static class Finger<K extends Comparable<K>,V> {
+        @SuppressWarnings("unchecked")
+        private TreeNode<K,V>[] nodes = (TreeNode<K,V>[]) new TreeNode<?,?>[16];
+        private long[] versions = new long[16];
+        @SuppressWarnings("unchecked")
+        private K[] lows = (K[]) new Comparable<?>[16];
+        @SuppressWarnings("unchecked")
+        private K[] highs = (K[]) new Comparable<?>[16];
+        private ChildDir[] dirs = new ChildDir[16];
+        private int depth;
+
+        private boolean findClosestNode(TreeNode<K,V> root, K key, TreeNodeVersion<K,V> outNode){
+            retry:
+            while(true){
+                if(depth == 0) push(0, root, root.version, null, null, ChildDir.None);
+                int level = depth - 1;
+                while(level > 0 && !covers(level, key)) --level;
+                TreeNode<K,V> node = nodes[level];
+                long nodeV = versions[level];
+                boolean found;
+                while(true){
+                    if(node.keysEqual(key)) {
+                        found = true;
+                        break;
+                    }
+                    ChildDir dir = node.getDirection(key);
+                    TreeNode<K,V> child = node.getChild(dir);
+                    if(child == null) {
+                        found = false;
+                        break;
+                    }
+                    long childV = child.version;
+                    if(node.version != nodeV) {
+                        depth = level;
+                        continue retry;
+                    }
+                    if((childV & TreeNode.DELETED_BIT) != 0) {
+                        depth = level + 1;
+                        continue retry;
+                    }
+                    K low = dir == ChildDir.Right ? node.key : lows[level];
+                    K high = dir == ChildDir.Left ? node.key : highs[level];
+                    push(++level, child, childV, low, high, dir);
+                    node = child;
+                    nodeV = childV;
+                }
+                depth = level + 1;
+                for(int i = 0; i < depth; ++i){
+                    if(nodes[i].version != versions[i]) {
+                        depth = i;
+                        continue retry;
+                    }
+                }
+                outNode.setNodeHard(node, nodeV);
+                outNode.foundExactly = found;
+                if(level > 0) {
+                    outNode.setParent(nodes[level - 1], versions[level - 1]);
+                    outNode.dir = dirs[level];
+                }
+                return true;
+            }
+        }
+
+        private boolean covers(int level, K key){
+            K low = lows[level], high = highs[level];
+            return (low == null || low.compareTo(key) < 0) && (high == null || key.compareTo(high) < 0);
+        }
+
+        private void push(int level, TreeNode<K,V> node, long version, K low, K high, ChildDir dir){
+            if(level == nodes.length) {
+                nodes = Arrays.copyOf(nodes, level * 2);
+                versions = Arrays.copyOf(versions, level * 2);
+                lows = Arrays.copyOf(lows, level * 2);
+                highs = Arrays.copyOf(highs, level * 2);
+                dirs = Arrays.copyOf(dirs, level * 2);
+            }
+            nodes[level] = node;
+            versions[level] = version;
+            lows[level] = low;
+            highs[level] = high;
+            dirs[level] = dir;
+            depth = level + 1;
+        }
+    }
+
+    /**
+     * The threads parked on contended node locks. A queue per node would
+     * grow every node, so the queues are shared by the nodes that hash to
+     * the same stripe, and each waiter records the node it waits for. An
+     * unlock that finds LOCKED_WAITERS unparks the longest waiting thread of
+     * its node, which then competes for the lock again. A waiter queues only
+     * while the lock word still says LOCKED_WAITERS, checked under the
+     * stripe's lock, so an unlock between its check and its queueing cannot
+     * be missed: the unlock clears the word first and looks at the queue
+     * after.
+     */
+    private static final class LockWaiters {
+        private static final int STRIPES = 64;
+        private static final LockWaiters[] STRIPE = new LockWaiters[STRIPES];
+
+        static {
+            for(int i = 0; i < STRIPES; ++i) STRIPE[i] = new LockWaiters();
+        }
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+        private static final class Waiter {
+            private final TreeNode<?,?> node;
+            private final Thread thread = Thread.currentThread();
+            private volatile boolean signalled;
+
+            private Waiter(TreeNode<?,?> node) {
+                this.node = node;
+            }
+        }
+
+        private static LockWaiters of(TreeNode<?,?> node) {
+            int h = System.identityHashCode(node);
+            return STRIPE[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        }
+
+        /**
+         * Parks until an unlock of node signals this thread, or returns at
+         * once if node was unlocked meanwhile. An interrupt is kept for the
+         * caller.
+         */
+        static void await(TreeNode<?,?> node) {
+            LockWaiters stripe = of(node);
+            Waiter waiter = new Waiter(node);
+            stripe.lock.lock();
+            try {
+                if(node.lockWord != TreeNode.LOCKED_WAITERS) return;
+                stripe.queue.add(waiter);
+            } finally {
+                stripe.lock.unlock();
+            }
+            boolean interrupted = false;
+            while(!waiter.signalled){
+                LockSupport.park(stripe);
+                if(Thread.interrupted()) interrupted = true;
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+
+        static void signal(TreeNode<?,?> node) {
+            LockWaiters stripe = of(node);
+            Waiter next = null;
+            stripe.lock.lock();
+            try {
+                for(Iterator<Waiter> it = stripe.queue.iterator(); it.hasNext(); ){
+                    Waiter waiter = it.next();
+                    if(waiter.node == node) {
+                        it.remove();
+                        next = waiter;
+                        break;
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            if(next == null) return;
+            next.signalled = true;
+            LockSupport.unpark(next.thread);
+        }
+    }
+
+    /**
+     * A static class, so nodes carry no reference to the map. The key is a
+     * plain field: it is written before the node is linked (or relinked after
+     * recycling) and never while the node is reachable, which is why removing
+     * a node with two children links in a copy of the successor instead of
+     * rewriting the victim. The balance hint used by maintenance lives in the
+     * version word, between the mark bits and the version counter.
+     *
+     * Updates lock a node with a CAS on its own lock word rather than its
+     * monitor, so that a thread waiting for a node, or a virtual thread that
+     * blocks while holding one, parks without pinning its carrier. The lock
+     * is not reentrant. It is kept apart from the version word, so locking a
+     * node to read it does not invalidate the searches passing through.
+     * A thread that cannot take the lock by spinning queues in
+     * {@link LockWaiters} and parks until an unlock hands it a turn; the
+     * lock word records that someone may be queued, so an uncontended
+     * unlock does not look at the queues.
+     */
+    private static class TreeNode<K extends Comparable<K>,V> {
+        @SuppressWarnings("unchecked")
+        private static final AtomicIntegerFieldUpdater<TreeNode<?,?>> LOCK =
+                (AtomicIntegerFieldUpdater<TreeNode<?,?>>) (AtomicIntegerFieldUpdater<?>) AtomicIntegerFieldUpdater.newUpdater(TreeNode.class, "lockWord");
+        private static final int SPINS_BEFORE_YIELD = 16;
+        private static final int YIELDS_BEFORE_PARK = 64;
+        private static final int LOCKED = 1;
+        private static final int LOCKED_WAITERS = 2;
+
+        private K key;
         private volatile V value;
-        private volatile TreeNode left;
-        private volatile TreeNode right;
+        private volatile TreeNode<K,V> left;
+        private volatile TreeNode<K,V> right;
         private volatile long version;
+        private volatile int lockWord;
+        /**
+         * A seqlock over value and the expiry time, odd while they are
+         * written, so that a new value does not move the version. Fits in the
+         * padding of the node.
+         */
+        private volatile int valueStamp;
+        private TreeNode<K,V> nextFree;
 
         private TreeNode(){
             key = null;
@@ -427,24 +2870,86 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             this.version = 0;
         }
 
-        @Override
-        public K getKey() {
-            return key;
+        /**
+         * Reinitializes a recycled node. The version only moves forward, so a
+         * cursor still holding the old version can tell the node was reused.
+         */
+        private void reuse(K key, V value){
+            this.key = key;
+            this.value = value;
+            this.left = null;
+            this.right = null;
+            setExpiresAt(NEVER);
+            this.valueStamp += 2;
+            this.version = (version & ~(ANY_LOCK|HEIGHT_MASK)) + VERSION_STEP;
         }
 
-        @Override
-        public V getValue() {
-            return value;
+        /**
+         * A plain node never expires; see ExpiringTreeNode.
+         */
+        protected long expiresAt() {
+            return NEVER;
         }
 
-        @Override
-        public V setValue(V value) {
-            V oldValue = value;
-            this.value = value;
-            return oldValue;
+        protected void setExpiresAt(long expiresAt) {
+            if(expiresAt != NEVER) throw new UnsupportedOperationException("expiry is disabled");
+        }
+
+        protected boolean isExpired() {
+            return false;
+        }
+
+        private V getValue() {
+            V value = this.value;
+            return value == TOMBSTONE ? null : value;
         }
 
-        private synchronized V removeSingleChild(ChildDir dir, TreeNode node){
+        private void lock() {
+            if(!LOCK.compareAndSet(this, 0, LOCKED)) lockContended();
+        }
+
+        /**
+         * Once it queues, a thread takes the lock as LOCKED_WAITERS, as it
+         * cannot tell whether others are still queued behind it; at worst
+         * that costs its unlock a look at an empty queue.
+         */
+        private void lockContended() {
+            for(int spin = 0; spin < SPINS_BEFORE_YIELD + YIELDS_BEFORE_PARK; ++spin){
+                if(lockWord == 0 && LOCK.compareAndSet(this, 0, LOCKED)) return;
+                if(spin >= SPINS_BEFORE_YIELD) Thread.yield();
+            }
+            while(true){
+                int word = lockWord;
+                if(word == 0) {
+                    if(LOCK.compareAndSet(this, 0, LOCKED_WAITERS)) return;
+                } else if(word == LOCKED_WAITERS || LOCK.compareAndSet(this, LOCKED, LOCKED_WAITERS)) {
+                    LockWaiters.await(this);
+                }
+            }
+        }
+
+        private void unlock() {
+            if(LOCK.getAndSet(this, 0) == LOCKED_WAITERS) LockWaiters.signal(this);
+        }
+
+        private int getHeight() {
+            return (int) ((version & HEIGHT_MASK) >>> HEIGHT_SHIFT);
+        }
+
+        /**
+         * Stores the balance hint, saturating at MAX_HEIGHT. Called with the
+         * node's lock held and the node unmarked, when no other thread can
+         * write the version word.
+         */
+        private void setHeight(int height){
+            long bits = (long) Math.min(height, MAX_HEIGHT) << HEIGHT_SHIFT;
+            version = ((version & ~HEIGHT_MASK) | bits) + VERSION_STEP;
+        }
+
+        /**
+         * The caller holds the locks of this node and node.
+         */
+        private V removeSingleChild(ChildDir dir, TreeNode<K,V> node){
             node.setDeleted();
             if(node.left == null){
                 setChild(dir, node.right);
@@ -454,7 +2959,7 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             return node.value;
         }        
         
-        private boolean findClosestNode(K key, TreeNodeVersion outNode){
+        private boolean findClosestNode(K key, TreeNodeVersion<K,V> outNode){
             long nodeV = this.version;            
             if(keysEqual(key)) {
                 outNode.setNodeHard(this, nodeV);
@@ -465,7 +2970,7 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
                 if(nodeV != version || isDeleted()) return false;
                 ChildDir dir = getDirection(key);
                 if(dir == ChildDir.This) return false;
-                TreeNode child = this.getChild(dir);
+                TreeNode<K,V> child = this.getChild(dir);
                 if(child == null) {
                     outNode.setNodeHard(this, nodeV);
                     outNode.foundExactly = false;
@@ -482,13 +2987,14 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             }
         }
 
-        private boolean findValue(V value, K min, K max, boolean allTree, TreeNodeValue tValue)
+        private boolean findValue(V value, K min, K max, boolean allTree, TreeNodeValue<K,V> tValue)
         {
             long nodeV = this.version;            
             while(true) {
                 boolean largerThanMin, smallerThanMax;
-                TreeNode snapRight, snapLeft;
-                synchronized(this){
+                TreeNode<K,V> snapRight, snapLeft;
+                lock();
+                try {
                     if(nodeV != version || isDeleted()) return false;
                     largerThanMin = allTree || compareToKey(min) >= 0;
                     smallerThanMax = allTree || compareToKey(max) <= 0;
@@ -498,8 +3004,10 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
                     }
                     snapRight = this.right;
                     snapLeft = this.left;
+                } finally {
+                    unlock();
                 }
-                if(largerThanMin && smallerThanMax && this.value == value) {
+                if(largerThanMin && smallerThanMax && Objects.equals(this.value, value) && !isExpired()) {
                     tValue.value = value;
                     tValue.foundExactly = true;
                     unsetChanging();
@@ -537,8 +3045,9 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             long nodeV = this.version;
             while(true) {
                 boolean largerThanMin, smallerThanMax;
-                TreeNode snapRight, snapLeft;
-                synchronized(this){
+                TreeNode<K,V> snapRight, snapLeft;
+                lock();
+                try {
                     if(nodeV != version || isDeleted()) return false;
                     largerThanMin = allTree || compareToKey(min) >= 0;
                     smallerThanMax = allTree || compareToKey(max) <= 0;
@@ -548,6 +3057,8 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
                     }
                     snapRight = this.right;
                     snapLeft = this.left;
+                } finally {
+                    unlock();
                 }
                 if (largerThanMin && snapLeft != null) {
                     if(!snapLeft.setChangingRange(min, max, allTree)) {
@@ -612,7 +3123,7 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             return ChildDir.Left;
         }
 
-        private TreeNode getChild(ChildDir dir){
+        private TreeNode<K,V> getChild(ChildDir dir){
             switch(dir){
                 case Left:
                     return left;
@@ -623,7 +3134,7 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
             }
         }
 
-        private void setChild(ChildDir dir, TreeNode child){
+        private void setChild(ChildDir dir, TreeNode<K,V> child){
             this.increaseVersion();
             if(child != null && keysEqual(child.key)) throw new UnsupportedOperationException("SHIT");
             switch(dir){
@@ -641,7 +3152,10 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
         private static final int DELETED_BIT = 1;
         private static final int CHANGING_BIT = 2;
         private static final int ANY_LOCK = DELETED_BIT|CHANGING_BIT;
-        private static final int VERSION_STEP = ANY_LOCK + 1;
+        private static final int HEIGHT_SHIFT = 2;
+        private static final int MAX_HEIGHT = 0xff;
+        private static final long HEIGHT_MASK = (long) MAX_HEIGHT << HEIGHT_SHIFT;
+        private static final long VERSION_STEP = HEIGHT_MASK + (1 << HEIGHT_SHIFT);
 
         private boolean isMarked(){
             boolean result = (version & ANY_LOCK) != 0;
@@ -677,9 +3191,20 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
         private void increaseVersion(){
             version += VERSION_STEP;
         }
+
+        /**
+         * The caller holds the node's lock.
+         */
+        private void beginValueWrite(){
+            ++valueStamp;
+        }
+
+        private void endValueWrite(){
+            ++valueStamp;
+        }
     }
 
-    private class NegInfTreeNode extends TreeNode {
+    private static class NegInfTreeNode<K extends Comparable<K>,V> extends TreeNode<K,V> {
         public NegInfTreeNode()
         {
         }
@@ -690,6 +3215,36 @@ public class BLTreeMap<K extends Comparable<K>,V> implements Map<K,V> {
         }
     }
 
+    /**
+     * A node of a map with EXPIRY, which keeps the System.nanoTime its entry
+     * expires at, NEVER for none. Written like the value, under the node's
+     * lock and its value stamp.
+     */
+    private static class ExpiringTreeNode<K extends Comparable<K>,V> extends TreeNode<K,V> {
+        private volatile long expiresAt;
+
+        public ExpiringTreeNode(K key, V value)
+        {
+            super(key, value);
+        }
+
+        @Override
+        protected long expiresAt() {
+            return expiresAt;
+        }
+
+        @Override
+        protected void setExpiresAt(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        protected boolean isExpired() {
+            long expiresAt = this.expiresAt;
+            return expiresAt != NEVER && System.nanoTime() - expiresAt >= 0;
+        }
+    }
+
     private enum ChildDir { None, Left, Right, This }
 }
 
@@ -0,0 +1,479 @@
+package algorithms.bltree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A sorted, read-only image of a map on disk. The file is a header, the
+ * entries in ascending key order as written by the key and value codecs,
+ * and a sparse index holding the offset of every INDEX_STRIDE-th entry.
+ *
+ * {@link #write} streams the entries out in one sequential pass and moves
+ * the file into place only once it is complete, so a crash never leaves a
+ * half-written snapshot under the final name. {@link #open} maps the file,
+ * after which the snapshot answers get and ordered range scans straight from
+ * the mapping, with a binary search over the sparse index and a scan of at
+ * most one stride, and {@link #loadInto} feeds it to a balanced bulk build.
+ * A server can therefore answer reads from the snapshot while the tree is
+ * being built on another thread.
+ *
+ * A delta snapshot holds only the keys that changed since the snapshot it
+ * continues, a removed key as an entry without a value, and records the
+ * log position of that snapshot. A base snapshot followed by the deltas
+ * that continue it forms a chain, which {@link #merge} reads as one map.
+ *
+ * Java 8 cannot unmap a file, so the mapping lives until the snapshot is
+ * garbage collected.
+ */
+public class BLTreeSnapshot<K extends Comparable<K>,V> implements Iterable<Map.Entry<K,V>> {
+    private static final int MAGIC = 0x424c5453;
+    private static final int FORMAT = 2;
+    private static final int HEADER_BYTES = 48;
+    private static final int DELTA = 1;
+    private static final int INDEX_STRIDE = 64;
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final MappedByteBuffer[] segments;
+    private final long count;
+    private final long logPosition;
+    private final long basePosition;
+    private final long indexPosition;
+    private final int stride;
+    private final long indexCount;
+    private final boolean delta;
+
+    private BLTreeSnapshot(FileChannel channel, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException
+    {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        long length = channel.size();
+        if(length < HEADER_BYTES) throw new IOException("not a snapshot: file too short");
+        segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for(int i = 0; i < segments.length; ++i){
+            long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, 1L << SEGMENT_SHIFT));
+        }
+        DataInputStream header = new DataInputStream(new MappedInput(0));
+        if(header.readInt() != MAGIC) throw new IOException("not a snapshot: bad magic");
+        int format = header.readInt();
+        if(format != FORMAT) throw new IOException("unsupported snapshot format " + format);
+        count = header.readLong();
+        logPosition = header.readLong();
+        basePosition = header.readLong();
+        indexPosition = header.readLong();
+        stride = header.readInt();
+        delta = (header.readInt() & DELTA) != 0;
+        indexCount = (count + stride - 1) / stride;
+        if(count < 0 || stride <= 0 || indexPosition < HEADER_BYTES || indexPosition + 8 * indexCount != length) {
+            throw new IOException("corrupt snapshot header");
+        }
+    }
+
+    /**
+     * Writes entries, which must be in strictly ascending key order, to path.
+     * logPosition is stored as is, for a log that continues the snapshot; see
+     * {@link DurableBLTreeMap#checkpoint}. Returns the number of entries.
+     */
+    public static <K extends Comparable<K>,V> long write(Iterator<? extends Map.Entry<K,V>> entries, Path path,
+            Codec<K> keyCodec, Codec<V> valueCodec, long logPosition) throws IOException {
+        return write(entries, path, keyCodec, valueCodec, logPosition, 0, false);
+    }
+
+    /**
+     * Writes a delta that continues the snapshot taken at basePosition. An
+     * entry with a null value records a removed key.
+     */
+    static <K extends Comparable<K>,V> long writeDelta(Iterator<? extends Map.Entry<K,V>> entries, Path path,
+            Codec<K> keyCodec, Codec<V> valueCodec, long logPosition, long basePosition) throws IOException {
+        return write(entries, path, keyCodec, valueCodec, logPosition, basePosition, true);
+    }
+
+    private static <K extends Comparable<K>,V> long write(Iterator<? extends Map.Entry<K,V>> entries, Path path,
+            Codec<K> keyCodec, Codec<V> valueCodec, long logPosition, long basePosition, boolean delta) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_BYTES);
+            CountingOutput counter = new CountingOutput(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            DataOutputStream out = new DataOutputStream(counter);
+            LongArray index = new LongArray();
+            K last = null;
+            while(entries.hasNext()){
+                Map.Entry<K,V> entry = entries.next();
+                K key = entry.getKey();
+                if(last != null && last.compareTo(key) >= 0) throw new IllegalArgumentException("keys must be strictly ascending");
+                last = key;
+                if(count % INDEX_STRIDE == 0) index.add(HEADER_BYTES + counter.written);
+                V value = entry.getValue();
+                if(delta) {
+                    out.writeBoolean(value != null);
+                } else if(value == null) {
+                    throw new NullPointerException();
+                }
+                keyCodec.write(key, out);
+                if(value != null) valueCodec.write(value, out);
+                ++count;
+            }
+            long indexPosition = HEADER_BYTES + counter.written;
+            for(int i = 0; i < index.size; ++i) out.writeLong(index.values[i]);
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(FORMAT).putLong(count).putLong(logPosition).putLong(basePosition).putLong(indexPosition)
+                    .putInt(INDEX_STRIDE).putInt(delta ? DELTA : 0);
+            header.clear();
+            while(header.hasRemaining()) channel.write(header, header.position());
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // a checkpoint cuts the log once this returns, so the rename must
+        // survive a crash as well as the contents
+        forceDirectory(path);
+        return count;
+    }
+
+    /**
+     * Forces the directory entry of a file moved to path, where the platform
+     * can open a directory at all.
+     */
+    static void forceDirectory(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the entries of map in key order. The map's views are weakly
+     * consistent, so under concurrent updates the snapshot holds every entry
+     * that was present throughout the write, and any mix of the updates that
+     * ran during it.
+     */
+    public static <K extends Comparable<K>,V> long write(BLTreeMap<K,V> map, Path path,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        return write(map.entrySet().iterator(), path, keyCodec, valueCodec, 0);
+    }
+
+    public static <K extends Comparable<K>,V> BLTreeSnapshot<K,V> open(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new BLTreeSnapshot<>(channel, keyCodec, valueCodec);
+        }
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /**
+     * The log position written with the snapshot.
+     */
+    public long logPosition() {
+        return logPosition;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * The log position of the snapshot a delta continues.
+     */
+    public long basePosition() {
+        return basePosition;
+    }
+
+    /**
+     * The value of key, or null if it is absent or, in a delta, removed.
+     */
+    public V get(K key) {
+        if(key == null) throw new NullPointerException();
+        Cursor cursor = seek(key);
+        if(cursor.hasNext() && cursor.peek().getKey().compareTo(key) == 0) return cursor.peek().getValue();
+        return null;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * The entries in ascending key order; a removed key of a delta has a
+     * null value.
+     */
+    @Override
+    public Iterator<Map.Entry<K,V>> iterator() {
+        return new Cursor(0, HEADER_BYTES, null);
+    }
+
+    /**
+     * The entries with keys in [lo, hi] in ascending order; a null bound is
+     * open.
+     */
+    public Iterator<Map.Entry<K,V>> entryIterator(K lo, K hi) {
+        Cursor cursor = lo == null ? new Cursor(0, HEADER_BYTES, hi) : seek(lo);
+        cursor.hi = hi;
+        return cursor;
+    }
+
+    /**
+     * Bulk loads the snapshot into tree, which must be empty and not yet
+     * shared. Runs at the speed of a sequential read of the file.
+     */
+    public void loadInto(BLTreeMap<K,V> tree) {
+        loadChain(Collections.singletonList(this), tree);
+    }
+
+    /**
+     * Bulk loads the merge of chain into tree, which must be empty and not
+     * yet shared. The chain is read twice, once to count.
+     */
+    public static <K extends Comparable<K>,V> void loadChain(List<BLTreeSnapshot<K,V>> chain, BLTreeMap<K,V> tree) {
+        long count = 0;
+        for(Iterator<Map.Entry<K,V>> it = merge(chain); it.hasNext(); it.next()) ++count;
+        if(count > Integer.MAX_VALUE) throw new IllegalStateException("snapshot too large for one tree");
+        tree.bulkLoad(merge(chain), (int) count);
+    }
+
+    /**
+     * The live entries of a chain in ascending key order: each snapshot
+     * overrides the ones before it, and a full snapshot discards them. Every
+     * delta must continue the snapshot before it; a chain that starts with
+     * a delta continues the empty map at log position 0. Writing the merge
+     * out with {@link #write} compacts the chain into one base snapshot.
+     */
+    public static <K extends Comparable<K>,V> Iterator<Map.Entry<K,V>> merge(List<BLTreeSnapshot<K,V>> chain) {
+        Iterator<Map.Entry<K,V>> merged = Collections.emptyIterator();
+        long position = 0;
+        for(BLTreeSnapshot<K,V> image : chain){
+            if(!image.delta) {
+                merged = image.iterator();
+            } else if(image.basePosition != position) {
+                throw new IllegalArgumentException("delta continues log position " + image.basePosition + ", not " + position);
+            } else {
+                merged = new Overlay<>(merged, image.iterator());
+            }
+            position = image.logPosition;
+        }
+        return merged;
+    }
+
+    /**
+     * A cursor at the first entry whose key is not below key.
+     */
+    private Cursor seek(K key) {
+        long low = 0, high = indexCount - 1, block = -1;
+        try {
+            while(low <= high){
+                long mid = (low + high) >>> 1;
+                DataInputStream in = new DataInputStream(new MappedInput(indexEntry(mid)));
+                if(delta) in.readBoolean();
+                K first = keyCodec.read(in);
+                if(first.compareTo(key) <= 0) {
+                    block = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if(block < 0) return new Cursor(0, HEADER_BYTES, null);
+        Cursor cursor = new Cursor(block * stride, indexEntry(block), null);
+        while(cursor.hasNext() && cursor.peek().getKey().compareTo(key) < 0) cursor.next();
+        return cursor;
+    }
+
+    private long indexEntry(long i) {
+        try {
+            return new DataInputStream(new MappedInput(indexPosition + 8 * i)).readLong();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private class Cursor implements Iterator<Map.Entry<K,V>> {
+        private final DataInputStream in;
+        private long position;
+        private K hi;
+        private Map.Entry<K,V> next;
+
+        private Cursor(long position, long offset, K hi) {
+            this.in = new DataInputStream(new MappedInput(offset));
+            this.position = position;
+            this.hi = hi;
+        }
+
+        private Map.Entry<K,V> peek() {
+            if(next == null && position < count) {
+                try {
+                    boolean present = !delta || in.readBoolean();
+                    K key = keyCodec.read(in);
+                    next = new AbstractMap.SimpleImmutableEntry<>(key, present ? valueCodec.read(in) : null);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                ++position;
+            }
+            return next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            Map.Entry<K,V> entry = peek();
+            return entry != null && (hi == null || entry.getKey().compareTo(hi) <= 0);
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            Map.Entry<K,V> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+
+    /**
+     * Merges a delta into the entries before it. A key in the delta replaces
+     * the one below, and a removed key hides it.
+     */
+    private static class Overlay<K extends Comparable<K>,V> implements Iterator<Map.Entry<K,V>> {
+        private final Iterator<Map.Entry<K,V>> below;
+        private final Iterator<Map.Entry<K,V>> delta;
+        private Map.Entry<K,V> nextBelow;
+        private Map.Entry<K,V> nextDelta;
+        private Map.Entry<K,V> next;
+
+        private Overlay(Iterator<Map.Entry<K,V>> below, Iterator<Map.Entry<K,V>> delta) {
+            this.below = below;
+            this.delta = delta;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(next == null){
+                if(nextBelow == null && below.hasNext()) nextBelow = below.next();
+                if(nextDelta == null && delta.hasNext()) nextDelta = delta.next();
+                if(nextBelow == null && nextDelta == null) return false;
+                int c = nextBelow == null ? 1 : nextDelta == null ? -1 : nextBelow.getKey().compareTo(nextDelta.getKey());
+                if(c < 0) {
+                    next = nextBelow;
+                    nextBelow = null;
+                } else {
+                    if(c == 0) nextBelow = null;
+                    if(nextDelta.getValue() != null) next = nextDelta;
+                    nextDelta = null;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            Map.Entry<K,V> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+
+    /**
+     * Reads the mapped segments from a position on, across segment borders.
+     * Each reader has its own duplicates of the buffers, so readers on
+     * different threads do not share a buffer position.
+     */
+    private class MappedInput extends InputStream {
+        private final ByteBuffer[] buffers = new ByteBuffer[segments.length];
+        private long position;
+
+        private MappedInput(long position) {
+            this.position = position;
+        }
+
+        private ByteBuffer buffer() {
+            int segment = (int) (position >>> SEGMENT_SHIFT);
+            if(segment >= segments.length) return null;
+            ByteBuffer buffer = buffers[segment];
+            if(buffer == null) buffer = buffers[segment] = segments[segment].duplicate();
+            buffer.position((int) (position & SEGMENT_MASK));
+            return buffer.hasRemaining() ? buffer : null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = buffer();
+            if(buffer == null) return -1;
+            ++position;
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if(length == 0) return 0;
+            ByteBuffer buffer = buffer();
+            if(buffer == null) return -1;
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            position += n;
+            return n;
+        }
+    }
+
+    private static class CountingOutput extends FilterOutputStream {
+        private long written;
+
+        private CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++written;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            written += length;
+        }
+    }
+
+    private static class LongArray {
+        private long[] values = new long[64];
+        private int size;
+
+        private void add(long value) {
+            if(size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
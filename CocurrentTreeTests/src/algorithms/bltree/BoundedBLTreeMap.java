@@ -0,0 +1,266 @@
+package algorithms.bltree;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A BLTreeMap bounded to a capacity, as a cache. Every entry has a weight,
+ * 1 unless a {@link Weigher} says otherwise, so the capacity is an entry
+ * count or a weighted size. A put that takes the total weight over the
+ * capacity evicts down to a low water mark a little below it, so the cost of
+ * eviction is spread over the puts that follow, and one thread evicts at a
+ * time while the others go on; the bound is soft by what the concurrent puts
+ * add in the meantime.
+ *
+ * {@link Eviction#LOWEST_KEYS} evicts the lowest keys first, which are also
+ * the oldest when keys grow with time, such as sequence numbers or
+ * timestamps. It removes them in batches through BLTreeMap.evictHead, mostly
+ * by cutting off a head subtree at once. {@link Eviction#LEAST_RECENTLY_USED}
+ * approximates LRU with the CLOCK algorithm: keys queue in order of
+ * insertion, a get sets a reference bit on its key, and eviction takes keys
+ * off the front of the queue, sending a key whose bit is set to the back
+ * with its bit cleared. Either way eviction costs, amortized, in proportion
+ * to the puts and gets that call for it, not to the size of the map.
+ * BLTreeMap does not balance on insert, so keys that only ever grow make a
+ * deep tree until {@link #startMaintenance} rebalances it; the eviction
+ * itself is cheap either way, as the lowest key is then at the top.
+ */
+public class BoundedBLTreeMap<K extends Comparable<K>,V> {
+    public enum Eviction {
+        LOWEST_KEYS,
+        LEAST_RECENTLY_USED
+    }
+
+    public interface Weigher<K,V> {
+        long weigh(K key, V value);
+    }
+
+    /** Eviction goes this fraction of the capacity below it. */
+    public static final int LOW_WATER_DIVISOR = 64;
+
+    private final BLTreeMap<K,Entry<K,V>> tree;
+    private final long capacity;
+    private final long lowWater;
+    private final Eviction eviction;
+    private final Weigher<? super K,? super V> weigher;
+    private final AtomicLong weight = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Slot<K>> clock;
+    private final AtomicInteger removedSlots = new AtomicInteger();
+    private final LongAdder evicted = new LongAdder();
+
+    public BoundedBLTreeMap(long capacity, Eviction eviction)
+    {
+        this(capacity, eviction, null, 0);
+    }
+
+    /**
+     * options are the BLTreeMap options of the backing tree; a null weigher
+     * weighs every entry 1.
+     */
+    public BoundedBLTreeMap(long capacity, Eviction eviction, Weigher<? super K,? super V> weigher, int options)
+    {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        if((options & BLTreeMap.EXPIRY) != 0) throw new IllegalArgumentException("expiry is not supported");
+        this.tree = new BLTreeMap<>(options);
+        this.capacity = capacity;
+        this.lowWater = capacity - capacity / LOW_WATER_DIVISOR;
+        this.eviction = eviction;
+        this.weigher = weigher;
+        this.clock = eviction == Eviction.LEAST_RECENTLY_USED ? new ConcurrentLinkedQueue<>() : null;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * The total weight of the entries, which is their number without a weigher.
+     */
+    public long weight() {
+        return weight.get();
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Number of entries evicted so far.
+     */
+    public long evictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Starts the maintenance thread of the backing tree, see
+     * {@link BLTreeMap#startMaintenance}.
+     */
+    public void startMaintenance(long periodMillis, double cpuBudget) {
+        tree.startMaintenance(periodMillis, cpuBudget);
+    }
+
+    public void stopMaintenance() {
+        tree.stopMaintenance();
+    }
+
+    public V get(K key) {
+        Entry<K,V> entry = tree.get(key);
+        if(entry == null) return null;
+        Slot<K> slot = entry.slot;
+        if(slot != null && !slot.referenced) slot.referenced = true;
+        return entry.value;
+    }
+
+    public boolean containsKey(K key) {
+        return tree.containsKey(key);
+    }
+
+    /**
+     * Puts key and evicts if the map is then over its capacity, which may
+     * evict key itself. An entry heavier than the whole capacity is refused.
+     */
+    public V put(K key, V value) {
+        if(key == null || value == null) throw new NullPointerException();
+        long entryWeight = weigher == null ? 1 : weigher.weigh(key, value);
+        if(entryWeight < 0 || entryWeight > capacity) throw new IllegalArgumentException("weight must be in 0..capacity");
+        Entry<K,V> entry = new Entry<>(value, entryWeight, clock == null ? null : new Slot<>(key));
+        Entry<K,V> old = tree.put(key, entry);
+        long total = weight.addAndGet(entryWeight - (old == null ? 0 : old.weight));
+        if(clock != null) {
+            if(old == null || old.slot.removed) {
+                clock.offer(entry.slot);
+            } else {
+                // the key keeps its place in the queue, and a write counts as a use
+                entry.slot = old.slot;
+                old.slot.referenced = true;
+            }
+        }
+        if(total > capacity) evict();
+        return old == null ? null : old.value;
+    }
+
+    public V remove(K key) {
+        Entry<K,V> old = tree.remove(key);
+        if(old == null) return null;
+        weight.addAndGet(-old.weight);
+        if(clock != null) {
+            old.slot.removed = true;
+            if(removedSlots.incrementAndGet() > Math.max(tree.size(), LOW_WATER_DIVISOR)) dropRemovedSlots();
+        }
+        return old.value;
+    }
+
+    public void clear() {
+        evictLock.lock();
+        try {
+            tree.clear();
+            if(clock != null) {
+                clock.clear();
+                removedSlots.set(0);
+            }
+            weight.set(0);
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts down to the low water mark, unless another thread is already
+     * evicting.
+     */
+    private void evict() {
+        if(!evictLock.tryLock()) return;
+        try {
+            while(weight.get() > lowWater){
+                int count = eviction == Eviction.LOWEST_KEYS ? evictLowestKeys() : evictLeastRecentlyUsed();
+                if(count == 0) break;
+                evicted.add(count);
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private int evictLowestKeys() {
+        long excess = weight.get() - lowWater;
+        int size = tree.size();
+        long average = size == 0 ? 1 : Math.max(1, weight.get() / size);
+        int count = (int) Math.min(Integer.MAX_VALUE, (excess + average - 1) / average);
+        return tree.evictHead(count, (key, entry) -> weight.addAndGet(-entry.weight));
+    }
+
+    private int evictLeastRecentlyUsed() {
+        int count = 0;
+        while(weight.get() > lowWater){
+            Slot<K> slot = clock.poll();
+            if(slot == null) break;
+            if(slot.removed) {
+                removedSlots.decrementAndGet();
+                continue;
+            }
+            if(slot.referenced) {
+                slot.referenced = false;
+                clock.offer(slot);
+                continue;
+            }
+            Entry<K,V> old = tree.remove(slot.key);
+            if(old == null) continue;
+            weight.addAndGet(-old.weight);
+            old.slot.removed = true;
+            if(old.slot != slot) removedSlots.incrementAndGet();
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Sweeps the slots of removed keys out of the queue once they outnumber
+     * the live ones, so that removes without evictions cannot grow it.
+     */
+    private void dropRemovedSlots() {
+        if(!evictLock.tryLock()) return;
+        try {
+            int dropped = 0;
+            for(Iterator<Slot<K>> it = clock.iterator(); it.hasNext();){
+                if(it.next().removed) {
+                    it.remove();
+                    ++dropped;
+                }
+            }
+            removedSlots.addAndGet(-dropped);
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private static final class Entry<K,V> {
+        private final V value;
+        private final long weight;
+        private volatile Slot<K> slot;
+
+        private Entry(V value, long weight, Slot<K> slot) {
+            this.value = value;
+            this.weight = weight;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A key's place in the CLOCK queue. It stays with the key across puts
+     * and is marked removed when the key is.
+     */
+    private static final class Slot<K> {
+        private final K key;
+        private volatile boolean referenced;
+        private volatile boolean removed;
+
+        private Slot(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package algorithms.bltree;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A write-buffering front end for a BLTreeMap. Every thread appends its
+ * puts and removes to a small buffer of its own, and the buffer is sorted
+ * and merged into the tree in one ascending pass when it reaches capacity,
+ * when its oldest write has waited maxDelayMillis, or on {@link #flush()}.
+ * The pass goes through BLTreeMap.sortedWriter, so each key resumes its
+ * search from the ancestors it shares with the previous one, and repeated
+ * updates of a key within one buffer reach the tree only once.
+ *
+ * Next to the buffers, a shared hash map holds the latest write of every
+ * key that is not merged yet, whichever thread made it. Reads consult it
+ * before the tree, so every thread sees every write as soon as it is made,
+ * and writes of one key are ordered by that map: a merge applies a write
+ * only while it is still the latest one of its key, and takes it out of the
+ * map after applying it, under a lock of the key that only merges take. A
+ * write made meanwhile is applied right after, so an older write never
+ * stays in the tree after a newer one, in whatever order the buffers are
+ * merged. Writers never wait for a merge.
+ *
+ * A daemon thread merges the buffers that have waited too long, so the tree
+ * catches up with a thread that stopped writing, and drops the buffers of
+ * threads that have ended once they are merged. It holds the map weakly and
+ * ends once the map is garbage collected. Values must not be null, as null
+ * marks a buffered remove.
+ */
+public class BufferedBLTreeMap<K extends Comparable<K>,V> {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 50;
+    private static final int KEY_LOCKS = 64;
+
+    private final BLTreeMap<K,V> tree;
+    private final int capacity;
+    private final long maxDelayNanos;
+    private final ConcurrentHashMap<K, Write<K,V>> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCKS];
+    private final ConcurrentLinkedQueue<WriteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<WriteBuffer> local = ThreadLocal.withInitial(this::register);
+    private final LongAdder merges = new LongAdder();
+
+    public BufferedBLTreeMap()
+    {
+        this(new BLTreeMap<>(), DEFAULT_CAPACITY);
+    }
+
+    public BufferedBLTreeMap(BLTreeMap<K,V> tree, int capacity)
+    {
+        this(tree, capacity, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public BufferedBLTreeMap(BLTreeMap<K,V> tree, int capacity, long maxDelayMillis)
+    {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        if(maxDelayMillis <= 0) throw new IllegalArgumentException("maxDelayMillis must be positive");
+        this.tree = tree;
+        this.capacity = capacity;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        for(int i = 0; i < KEY_LOCKS; ++i) keyLocks[i] = new ReentrantLock();
+        new Flusher(this, Math.max(1, maxDelayMillis / 2)).start();
+    }
+
+    /**
+     * The backing tree. It holds only merged writes.
+     */
+    public BLTreeMap<K,V> tree() {
+        return tree;
+    }
+
+    public void put(K key, V value) {
+        if(key == null || value == null) throw new NullPointerException();
+        write(new Write<>(key, value));
+    }
+
+    /**
+     * A buffered remove cannot tell whether the key was present.
+     */
+    public void remove(K key) {
+        if(key == null) throw new NullPointerException();
+        write(new Write<>(key, null));
+    }
+
+    /**
+     * The write goes into the shared map before the buffer, so that a merge
+     * that finds it in the buffer also finds it, or a newer one, there.
+     */
+    private void write(Write<K,V> write) {
+        pending.put(write.key, write);
+        local.get().append(write);
+    }
+
+    public V get(K key) {
+        Write<K,V> write = pending.get(key);
+        if(write != null) return write.value;
+        return tree.get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Iterates over the tree in [lo, hi] after merging every buffer, so the
+     * range reflects the writes made before the call.
+     */
+    public Iterator<Map.Entry<K,V>> entryIterator(K lo, K hi) {
+        flushAll();
+        return tree.entryIterator(lo, hi);
+    }
+
+    /**
+     * Merges this thread's buffer into the tree.
+     */
+    public void flush() {
+        local.get().merge();
+    }
+
+    /**
+     * Merges the buffers of all threads, including threads that have ended.
+     */
+    public void flushAll() {
+        for(WriteBuffer buffer : buffers){
+            buffer.merge();
+            if(!buffer.owner.isAlive()) buffers.remove(buffer);
+        }
+    }
+
+    /**
+     * Size of the tree, not counting writes that are still buffered.
+     */
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Number of buffers merged so far.
+     */
+    public long mergeCount() {
+        return merges.sum();
+    }
+
+    /**
+     * Number of threads with a buffer, including ended threads whose buffer
+     * has not been merged since.
+     */
+    public int bufferCount() {
+        return buffers.size();
+    }
+
+    private WriteBuffer register() {
+        WriteBuffer buffer = new WriteBuffer();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Merges the buffers whose oldest write has waited maxDelayNanos, and
+     * drops those of ended threads.
+     */
+    private void flushStale() {
+        long now = System.nanoTime();
+        for(WriteBuffer buffer : buffers){
+            if(buffer.isStale(now)) buffer.merge();
+            if(!buffer.owner.isAlive() && buffer.isEmpty()) buffers.remove(buffer);
+        }
+    }
+
+    private ReentrantLock keyLock(K key) {
+        int h = key.hashCode();
+        return keyLocks[(h ^ (h >>> 16)) & (KEY_LOCKS - 1)];
+    }
+
+    /**
+     * Applies write unless a newer write of its key replaced it in pending,
+     * and then takes the key out of pending. The key lock keeps another
+     * merge from applying a newer write between the check and the apply,
+     * which the older write would then overwrite.
+     */
+    private void apply(BiConsumer<K,V> writer, Write<K,V> write) {
+        ReentrantLock keyLock = keyLock(write.key);
+        keyLock.lock();
+        try {
+            if(pending.get(write.key) != write) return;
+            writer.accept(write.key, write.value);
+            while(!pending.remove(write.key, write)){
+                // a newer write was made meanwhile; only merges remove from
+                // pending, so it is still there
+                write = pending.get(write.key);
+                writer.accept(write.key, write.value);
+            }
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private static final class Write<K,V> {
+        private final K key;
+        private final V value;
+
+        private Write(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Only its thread appends to a buffer, but flushAll and the flusher may
+     * merge it from another thread, so it is guarded by its own lock, which
+     * is uncontended in the common case.
+     */
+    private class WriteBuffer {
+        private final Thread owner = Thread.currentThread();
+        /** In the order they were made, sorted by key when merged. */
+        private final ArrayList<Write<K,V>> writes = new ArrayList<>(capacity);
+        private final ReentrantLock lock = new ReentrantLock();
+        /** When the oldest write in the buffer was made. */
+        private long oldest;
+
+        private void append(Write<K,V> write) {
+            lock.lock();
+            try {
+                if(writes.isEmpty()) oldest = System.nanoTime();
+                writes.add(write);
+                if(writes.size() >= capacity) merge();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void merge() {
+            lock.lock();
+            try {
+                if(writes.isEmpty()) return;
+                // of several writes of a key, apply skips all but the one
+                // pending still holds
+                writes.sort((a, b) -> a.key.compareTo(b.key));
+                BiConsumer<K,V> writer = tree.sortedWriter();
+                for(Write<K,V> write : writes) apply(writer, write);
+                writes.clear();
+                merges.increment();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isStale(long now) {
+            lock.lock();
+            try {
+                return !writes.isEmpty() && now - oldest >= maxDelayNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isEmpty() {
+            lock.lock();
+            try {
+                return writes.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs flushStale every period while the map is reachable from
+     * elsewhere.
+     */
+    private static final class Flusher extends Thread {
+        private final WeakReference<BufferedBLTreeMap<?,?>> map;
+        private final long periodMillis;
+
+        private Flusher(BufferedBLTreeMap<?,?> map, long periodMillis) {
+            super("BufferedBLTreeMap flusher");
+            this.map = new WeakReference<>(map);
+            this.periodMillis = periodMillis;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(true){
+                try {
+                    Thread.sleep(periodMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(!flushStale()) return;
+            }
+        }
+
+        /**
+         * Kept out of run, so that no local of run holds the map while it
+         * sleeps.
+         */
+        private boolean flushStale() {
+            BufferedBLTreeMap<?,?> current = map.get();
+            if(current == null) return false;
+            current.flushStale();
+            return true;
+        }
+    }
+}
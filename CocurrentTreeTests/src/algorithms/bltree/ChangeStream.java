@@ -0,0 +1,203 @@
+package algorithms.bltree;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of the changes made to a {@link BLTreeMap}, numbered by a
+ * sequence that starts at 0. Any number of writers publish into it, and any
+ * number of {@link Subscription}s each read the changes from the point they
+ * subscribed, in batches and at their own pace.
+ *
+ * A writer claims a sequence with one atomic increment, fills the slot and
+ * marks it with the sequence. It never waits on a reader, as it publishes
+ * under the tree's locks: once the ring is full it overwrites the oldest
+ * change, read or not. A subscription that falls more than the capacity
+ * behind has lost the changes that were overwritten, and its next poll
+ * reports them to {@link Handler#onLoss} before it goes on with the oldest
+ * change still in the ring.
+ *
+ * A change is a key with its new value, a null value for a removed key and a
+ * null key for a clear of the whole map.
+ */
+public class ChangeStream<K,V> {
+    public interface Handler<K,V> {
+        void onChange(long sequence, K key, V value);
+
+        /**
+         * Called in place of the changes from sequence from to sequence to,
+         * exclusive, which were overwritten before they were read. Does
+         * nothing by default; {@link Subscription#lost} counts them anyway.
+         */
+        default void onLoss(long from, long to) {
+        }
+    }
+
+    private static final long UNSTARTED = Long.MIN_VALUE;
+    /** A slot marked BUSY - s is being filled with the change of sequence s. */
+    private static final long BUSY = -2;
+    private static final int SPINS = 64;
+
+    private final int mask;
+    private final AtomicReferenceArray<Object> keys;
+    private final AtomicReferenceArray<Object> values;
+    private final AtomicLongArray published;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * capacity is rounded up to a power of two.
+     */
+    public ChangeStream(int capacity) {
+        if(capacity <= 0 || capacity > 1 << 30) throw new IllegalArgumentException("capacity must be in 1..2^30");
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) size <<= 1;
+        mask = size - 1;
+        keys = new AtomicReferenceArray<>(size);
+        values = new AtomicReferenceArray<>(size);
+        published = new AtomicLongArray(size);
+        for(int i = 0; i < size; ++i) published.set(i, -1);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * The sequence the next change will get, which is also the number of
+     * changes published so far.
+     */
+    public long sequence() {
+        return next.get();
+    }
+
+    /**
+     * Publishes a change and returns its sequence. BLTreeMap calls this under
+     * the node locks that make the change visible, so the changes of one key
+     * are numbered in the order they were made. The slot is marked busy while
+     * it is filled, so a reader never takes the key of one change with the
+     * value of another; a writer only waits for another writer that is
+     * filling the same slot, a whole lap earlier, and drops its change if a
+     * writer a lap later has already taken the slot.
+     */
+    long publish(K key, V value) {
+        long sequence = next.getAndIncrement();
+        int slot = (int) sequence & mask;
+        for(long current = published.get(slot); ; current = published.get(slot)){
+            if(current <= BUSY) {
+                if(BUSY - current > sequence) return sequence;
+                Thread.yield();
+            } else if(current > sequence) {
+                return sequence;
+            } else if(published.compareAndSet(slot, current, BUSY - sequence)) {
+                break;
+            }
+        }
+        keys.lazySet(slot, key);
+        values.lazySet(slot, value);
+        published.lazySet(slot, sequence);
+        return sequence;
+    }
+
+    /**
+     * Subscribes to every change published after this call returns.
+     */
+    public Subscription subscribe() {
+        return new Subscription(next.get());
+    }
+
+    /**
+     * One reader's position in the stream. A subscription is read by one
+     * thread at a time.
+     */
+    public class Subscription implements AutoCloseable {
+        private volatile long position;
+        private volatile long lost;
+
+        private Subscription(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Hands up to max changes that are ready, in sequence order, to
+         * handler and returns how many it handed over. Never waits. A change
+         * whose handler throws is handed over again by the next poll. The
+         * changes overwritten before they were read are reported to
+         * handler.onLoss as one range, in their place in the sequence order.
+         */
+        public int poll(Handler<? super K,? super V> handler, int max) {
+            long sequence = position;
+            if(sequence == UNSTARTED) throw new IllegalStateException("subscription is closed");
+            int count = 0;
+            try {
+                while(count < max){
+                    int slot = (int) sequence & mask;
+                    if(published.get(slot) == sequence) {
+                        K key = (K) keys.get(slot);
+                        V value = (V) values.get(slot);
+                        // a writer a lap later may have filled the slot meanwhile
+                        if(published.get(slot) == sequence) {
+                            handler.onChange(sequence, key, value);
+                            ++sequence;
+                            ++count;
+                            continue;
+                        }
+                    }
+                    long oldest = next.get() - capacity();
+                    if(sequence >= oldest) break;
+                    handler.onLoss(sequence, oldest);
+                    lost += oldest - sequence;
+                    sequence = oldest;
+                }
+            } finally {
+                position = sequence;
+            }
+            return count;
+        }
+
+        /**
+         * Like poll, but waits up to timeoutNanos for a first change, spinning
+         * briefly and then parking.
+         */
+        public int poll(Handler<? super K,? super V> handler, int max, long timeoutNanos) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            for(int spin = 0; ; ++spin){
+                int count = poll(handler, max);
+                if(count > 0 || System.nanoTime() - deadline >= 0) return count;
+                if(spin < SPINS) Thread.yield();
+                else LockSupport.parkNanos(Math.min(50000, deadline - System.nanoTime()));
+            }
+        }
+
+        /**
+         * The sequence of the next change this subscription will read.
+         */
+        public long position() {
+            return position;
+        }
+
+        /**
+         * Number of changes published but not yet read. Beyond the capacity,
+         * the oldest of them are lost.
+         */
+        public long lag() {
+            return next.get() - position;
+        }
+
+        /**
+         * Number of changes this subscription has lost so far.
+         */
+        public long lost() {
+            return lost;
+        }
+
+        /**
+         * A closed subscription can no longer be polled.
+         */
+        @Override
+        public void close() {
+            position = UNSTARTED;
+        }
+    }
+}
@@ -0,0 +1,712 @@
+package algorithms.bltree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A BLTreeMap whose puts and removes are appended to a write-ahead log, so
+ * that the map survives a crash of the process. Opening the map replays the
+ * log into the tree; a torn record at the end, left by a crash in the middle
+ * of a write, is cut off. {@link #checkpoint} writes a {@link BLTreeSnapshot}
+ * of the tree, and opening the map with that snapshot bulk loads it and
+ * replays only the part of the log written after it.
+ * {@link #checkpointDelta} writes only the keys updated since the previous
+ * checkpoint, so its cost follows the write volume rather than the size of
+ * the map; a restart merges the base snapshot with its deltas. Once a
+ * checkpoint is written, the log drops the records before its position.
+ *
+ * Writers copy their encoded record into a shared in-memory buffer and
+ * return or wait according to the {@link SyncPolicy}. A single flusher
+ * thread writes the buffer to the file and forces it, so everything the
+ * writers appended while the previous force was running goes to disk with
+ * the next one: however many threads write, each force covers a whole
+ * group of them. An update holds the lock of its key's stripe from the
+ * append to the tree update, so its record is in the log before the tree
+ * changes, and updates of one key reach the tree in the order of their
+ * records; updates of different keys are not ordered.
+ *
+ * The log file starts with the position of its first record, so that
+ * positions stay the same when a checkpoint cuts off the records before it.
+ * The flusher copies the records after the checkpoint to a new file and
+ * moves that over the log; the copy is short, as it only holds the updates
+ * made while the checkpoint was written.
+ *
+ * A reader can see a write before it is durable. Once an I/O error has
+ * failed the log, every further update throws UncheckedIOException.
+ */
+public class DurableBLTreeMap<K extends Comparable<K>,V> implements AutoCloseable {
+    public enum SyncPolicy {
+        /** Every update returns once its record is forced to disk. */
+        EVERY_WRITE,
+        /** The log is forced every period; a crash loses at most a period. */
+        PERIODIC,
+        /** The log is written every period and the OS decides when to force it. */
+        OS
+    }
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int LOG_HEADER_BYTES = 8;
+    private static final int STRIPES = 256;
+    private static final int PENDING_LIMIT = 1 << 22;
+
+    private final BLTreeMap<K,V> tree;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final ThreadLocal<RecordBuffer> records = ThreadLocal.withInitial(RecordBuffer::new);
+    private final Log log;
+    private final Object checkpointLock = new Object();
+    private volatile Set<K> dirty;
+    private long checkpointPosition;
+
+    /**
+     * Opens the log at path, creating it if needed, and replays it into tree,
+     * which must be empty. periodMillis is the flush period of PERIODIC and
+     * OS and is ignored by EVERY_WRITE.
+     */
+    public DurableBLTreeMap(BLTreeMap<K,V> tree, Path path, Codec<K> keyCodec, Codec<V> valueCodec,
+            SyncPolicy policy, long periodMillis) throws IOException
+    {
+        this(tree, path, Collections.<Path>emptyList(), keyCodec, valueCodec, policy, periodMillis);
+    }
+
+    /**
+     * Like the constructor without a snapshot, but if the snapshot file
+     * exists it is loaded first and the log is replayed from the position the
+     * snapshot was taken at.
+     */
+    public DurableBLTreeMap(BLTreeMap<K,V> tree, Path path, Path snapshot, Codec<K> keyCodec, Codec<V> valueCodec,
+            SyncPolicy policy, long periodMillis) throws IOException
+    {
+        this(tree, path, snapshot != null && Files.exists(snapshot) ? Collections.singletonList(snapshot) : Collections.<Path>emptyList(),
+                keyCodec, valueCodec, policy, periodMillis);
+    }
+
+    /**
+     * Loads a chain of snapshots, a base followed by the deltas that
+     * continue it (see {@link BLTreeSnapshot#merge}), and replays the log
+     * from the position of the last one.
+     */
+    public DurableBLTreeMap(BLTreeMap<K,V> tree, Path path, List<Path> snapshots, Codec<K> keyCodec, Codec<V> valueCodec,
+            SyncPolicy policy, long periodMillis) throws IOException
+    {
+        if(!tree.isEmpty()) throw new IllegalArgumentException("tree must be empty");
+        if(policy != SyncPolicy.EVERY_WRITE && periodMillis <= 0) throw new IllegalArgumentException("periodMillis must be positive");
+        this.tree = tree;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        for(int i = 0; i < STRIPES; ++i) stripes[i] = new ReentrantLock();
+        long start = 0;
+        if(!snapshots.isEmpty()) {
+            List<BLTreeSnapshot<K,V>> chain = new ArrayList<>();
+            for(Path snapshot : snapshots) chain.add(BLTreeSnapshot.open(snapshot, keyCodec, valueCodec));
+            BLTreeSnapshot.loadChain(chain, tree);
+            start = chain.get(chain.size() - 1).logPosition();
+        }
+        checkpointPosition = start;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long first = readLogHeader(channel);
+            long end = replay(channel, first, start);
+            log = new Log(path, channel, first, end, policy, TimeUnit.MILLISECONDS.toNanos(periodMillis));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        log.start();
+    }
+
+    /**
+     * The backing tree. Writing to it directly bypasses the log.
+     */
+    public BLTreeMap<K,V> tree() {
+        return tree;
+    }
+
+    public V put(K key, V value) {
+        if(key == null || value == null) throw new NullPointerException();
+        RecordBuffer record = records.get().encode(PUT, key, value);
+        V oldValue;
+        long lsn;
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            lsn = log.append(record);
+            oldValue = tree.put(key, value);
+            markDirty(key);
+        } finally {
+            stripe.unlock();
+        }
+        log.awaitDurable(lsn);
+        return oldValue;
+    }
+
+    /**
+     * A remove of an absent key changes nothing and is not logged.
+     */
+    public V remove(K key) {
+        if(key == null) throw new NullPointerException();
+        RecordBuffer record = records.get().encode(REMOVE, key, null);
+        V oldValue;
+        long lsn;
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            if(!tree.containsKey(key)) return null;
+            lsn = log.append(record);
+            oldValue = tree.remove(key);
+            markDirty(key);
+        } finally {
+            stripe.unlock();
+        }
+        log.awaitDurable(lsn);
+        return oldValue;
+    }
+
+    public V get(K key) {
+        return tree.get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return tree.containsKey(key);
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    public Iterator<Map.Entry<K,V>> entryIterator(K lo, K hi) {
+        return tree.entryIterator(lo, hi);
+    }
+
+    /**
+     * Returns once every update that returned before the call is on disk,
+     * whatever the policy.
+     */
+    public void sync() {
+        log.sync();
+    }
+
+    /**
+     * Writes a snapshot of the tree to path for a later restart, and returns
+     * the number of entries in it. The log is forced up to a position first,
+     * so every update before that position is in the tree and on disk; an
+     * update that reaches the snapshot after the position is also in the log
+     * behind it, where replaying it again is harmless. Once the snapshot is
+     * written, the records before the position are cut off the log, so a
+     * restart needs the snapshot.
+     */
+    public long checkpoint(Path path) throws IOException {
+        return checkpoint(path, false);
+    }
+
+    /**
+     * Writes a delta snapshot of the keys updated since the previous
+     * checkpoint, full or delta, to path and returns the number of keys in
+     * it. Restarting needs the whole chain from the last full checkpoint on,
+     * or a compaction of it. Updated keys are only tracked from the first
+     * delta checkpoint of an open map on, so that one writes every entry and
+     * starts the chain; a map that never takes a delta pays nothing for them.
+     * The log is cut at the position of the delta, as after a full one.
+     */
+    public long checkpointDelta(Path path) throws IOException {
+        return checkpoint(path, true);
+    }
+
+    private long checkpoint(Path path, boolean delta) throws IOException {
+        synchronized(checkpointLock){
+            long[] position = new long[1];
+            Set<K> keys = cut(0, delta || dirty != null ? ConcurrentHashMap.<K>newKeySet() : null, position);
+            log.sync();
+            long count;
+            try {
+                count = delta && keys != null ? writeDelta(keys, path, position[0])
+                        : BLTreeSnapshot.write(tree.entrySet().iterator(), path, keyCodec, valueCodec, position[0]);
+            } catch (IOException | RuntimeException e) {
+                if(keys != null) dirty.addAll(keys);
+                else cut(0, null, position);
+                throw e;
+            }
+            checkpointPosition = position[0];
+            log.truncate(position[0]);
+            return count;
+        }
+    }
+
+    private long writeDelta(Set<K> keys, Path path, long position) throws IOException {
+        @SuppressWarnings("unchecked")
+        K[] sorted = (K[]) keys.toArray(new Comparable<?>[keys.size()]);
+        Arrays.sort(sorted);
+        V[] values = (V[]) new Object[sorted.length];
+        tree.getAll(sorted, values);
+        List<Map.Entry<K,V>> entries = new ArrayList<>(sorted.length);
+        for(int i = 0; i < sorted.length; ++i) entries.add(new AbstractMap.SimpleImmutableEntry<>(sorted[i], values[i]));
+        return BLTreeSnapshot.writeDelta(entries.iterator(), path, keyCodec, valueCodec, position, checkpointPosition);
+    }
+
+    /**
+     * Number of keys updated since the last checkpoint, or 0 while updated
+     * keys are not tracked.
+     */
+    public int dirtyCount() {
+        Set<K> keys = dirty;
+        return keys == null ? 0 : keys.size();
+    }
+
+    /**
+     * Number of times the log was forced to disk.
+     */
+    public long forceCount() {
+        return log.forces.sum();
+    }
+
+    /**
+     * Number of records appended since the map was opened.
+     */
+    public long recordCount() {
+        return log.appended.sum();
+    }
+
+    /**
+     * Forces the log and closes it. Updates made after close throw.
+     */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Starts a new checkpoint epoch that tracks updated keys in next, or none
+     * if next is null, stores the log position it starts at in position[0]
+     * and returns the keys updated in the epoch it ends. With every stripe
+     * held no update is between its append and marking its key, so the
+     * returned keys are exactly those of the records before the position.
+     * An update after it may show up in the checkpoint too, which is
+     * harmless: its record is replayed after the checkpoint and its key is
+     * marked in the new epoch.
+     */
+    private Set<K> cut(int stripe, Set<K> next, long[] position) {
+        if(stripe == STRIPES) {
+            Set<K> keys = dirty;
+            dirty = next;
+            position[0] = log.position();
+            return keys;
+        }
+        stripes[stripe].lock();
+        try {
+            return cut(stripe + 1, next, position);
+        } finally {
+            stripes[stripe].unlock();
+        }
+    }
+
+    /**
+     * Most updates hit a key that is already dirty, and a set's add locks
+     * its bin even then, so look first.
+     */
+    private void markDirty(K key) {
+        Set<K> keys = dirty;
+        if(keys != null && !keys.contains(key)) keys.add(key);
+    }
+
+    private ReentrantLock stripe(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    /**
+     * Returns the position of the first record in the log, writing the
+     * header of an empty log first. A log shorter than its header was torn
+     * while it was created and holds no record.
+     */
+    private static long readLogHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        if(channel.size() < LOG_HEADER_BYTES) {
+            channel.truncate(0);
+            header.putLong(0, 0);
+            while(header.hasRemaining()) channel.write(header, header.position());
+            channel.force(true);
+            return 0;
+        }
+        while(header.hasRemaining()) if(channel.read(header, header.position()) < 0) throw new EOFException();
+        return header.getLong(0);
+    }
+
+    /**
+     * Applies the records of the log from position start on to the tree,
+     * truncates it after the last whole record and returns the position of
+     * its end. first is the position of the first record in the log.
+     */
+    private long replay(FileChannel channel, long first, long start) throws IOException {
+        if(start < first) throw new IOException("log starts after the snapshot it continues");
+        long length = first + channel.size() - LOG_HEADER_BYTES;
+        if(length < start) throw new IOException("log is shorter than the snapshot it continues");
+        channel.position(LOG_HEADER_BYTES + start - first);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        long end = start;
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[64];
+        while(length - end >= HEADER_BYTES){
+            int size = in.readInt();
+            int checksum = in.readInt();
+            if(size <= 0 || size > length - end - HEADER_BYTES) break;
+            if(payload.length < size) payload = new byte[Math.max(size, payload.length * 2)];
+            in.readFully(payload, 0, size);
+            crc.reset();
+            crc.update(payload, 0, size);
+            if((int) crc.getValue() != checksum) break;
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, size));
+            byte op = record.readByte();
+            K key = keyCodec.read(record);
+            if(op == PUT) tree.put(key, valueCodec.read(record));
+            else if(op == REMOVE) tree.remove(key);
+            else throw new IOException("unknown log record " + op);
+            end += HEADER_BYTES + size;
+        }
+        if(end < length) channel.truncate(LOG_HEADER_BYTES + end - first);
+        channel.position(LOG_HEADER_BYTES + end - first);
+        return end;
+    }
+
+    /**
+     * A thread's scratch space for encoding a record before it takes any lock.
+     */
+    private class RecordBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream out = new DataOutputStream(this);
+        private final CRC32 crc = new CRC32();
+        private int checksum;
+
+        private RecordBuffer encode(byte op, K key, V value) {
+            reset();
+            try {
+                out.writeByte(op);
+                keyCodec.write(key, out);
+                if(op == PUT) valueCodec.write(value, out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            crc.reset();
+            crc.update(buf, 0, count);
+            checksum = (int) crc.getValue();
+            return this;
+        }
+
+        private void copyTo(byte[] bytes, int offset) {
+            System.arraycopy(buf, 0, bytes, offset, count);
+        }
+    }
+
+    /**
+     * Positions in the log (LSNs) are byte offsets from the first record
+     * ever appended. Appenders fill pending under the log's lock; the
+     * flusher swaps it for an empty buffer, writes it outside the lock and
+     * publishes how far the file is forced. Only the flusher writes the file
+     * and replaces it when the log is truncated. An appender that would
+     * take pending past PENDING_LIMIT waits until the flusher has taken it,
+     * so writers that outrun the disk under PERIODIC or OS are held back
+     * instead of filling the heap.
+     */
+    private class Log {
+        private final Path path;
+        private FileChannel channel;
+        private final SyncPolicy policy;
+        private final long periodNanos;
+        private final Thread flusher;
+        private final ReentrantLock lock = new ReentrantLock();
+        /** Signalled when the flusher has something to do. */
+        private final Condition work = lock.newCondition();
+        /** Signalled when the flusher has taken pending. */
+        private final Condition room = lock.newCondition();
+        private final Object durableMonitor = new Object();
+        private final LongAdder forces = new LongAdder();
+        private final LongAdder appended = new LongAdder();
+        private byte[] pending = new byte[1 << 16];
+        private byte[] spare = new byte[1 << 16];
+        private int pendingLength;
+        private long appendedLsn;
+        private boolean syncRequested;
+        private boolean flushRequested;
+        private long truncateRequested;
+        private boolean closing;
+        /** Position of the first record in the file. */
+        private volatile long firstLsn;
+        private volatile long durableLsn;
+        private volatile IOException failure;
+
+        private Log(Path path, FileChannel channel, long first, long end, SyncPolicy policy, long periodNanos) {
+            this.path = path;
+            this.channel = channel;
+            this.policy = policy;
+            this.periodNanos = periodNanos;
+            this.firstLsn = first;
+            this.appendedLsn = end;
+            this.durableLsn = end;
+            this.flusher = new Thread(this::flush, "DurableBLTreeMap log");
+            flusher.setDaemon(true);
+        }
+
+        private void start() {
+            flusher.start();
+        }
+
+        private long append(RecordBuffer record) {
+            int size = HEADER_BYTES + record.size();
+            lock.lock();
+            try {
+                checkOpen();
+                while(pendingLength > 0 && pendingLength + size > PENDING_LIMIT){
+                    flushRequested = true;
+                    work.signal();
+                    room.awaitUninterruptibly();
+                    checkOpen();
+                }
+                if(pending.length - pendingLength < size) pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + size));
+                writeInt(pending, pendingLength, record.size());
+                writeInt(pending, pendingLength + 4, record.checksum);
+                record.copyTo(pending, pendingLength + HEADER_BYTES);
+                pendingLength += size;
+                appendedLsn += size;
+                appended.increment();
+                if(policy == SyncPolicy.EVERY_WRITE) work.signal();
+                return appendedLsn;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void awaitDurable(long lsn) {
+            if(policy == SyncPolicy.EVERY_WRITE) waitFor(lsn);
+        }
+
+        private long position() {
+            lock.lock();
+            try {
+                return appendedLsn;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Forces everything appended so far and returns how far that is.
+         */
+        private long sync() {
+            long lsn;
+            lock.lock();
+            try {
+                checkOpen();
+                lsn = appendedLsn;
+                if(durableLsn >= lsn) return lsn;
+                syncRequested = true;
+                work.signal();
+            } finally {
+                lock.unlock();
+            }
+            waitFor(lsn);
+            return lsn;
+        }
+
+        /**
+         * Has the flusher cut off the records before lsn, which must be
+         * durable, and waits until it has.
+         */
+        private void truncate(long lsn) throws IOException {
+            lock.lock();
+            try {
+                checkOpen();
+                if(firstLsn >= lsn) return;
+                truncateRequested = lsn;
+                work.signal();
+            } finally {
+                lock.unlock();
+            }
+            boolean interrupted = false;
+            synchronized(durableMonitor){
+                while(firstLsn < lsn && failure == null){
+                    try {
+                        durableMonitor.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            if(firstLsn < lsn) throw failure;
+        }
+
+        private void waitFor(long lsn) {
+            if(durableLsn >= lsn) return;
+            boolean interrupted = false;
+            synchronized(durableMonitor){
+                while(durableLsn < lsn && failure == null){
+                    try {
+                        durableMonitor.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            if(durableLsn < lsn) throw new UncheckedIOException(failure);
+        }
+
+        private void checkOpen() {
+            if(failure != null) throw new UncheckedIOException(failure);
+            if(closing) throw new IllegalStateException("log is closed");
+        }
+
+        /**
+         * The flusher's loop.
+         */
+        private void flush() {
+            long written = durableLsn;
+            try {
+                while(true){
+                    byte[] batch;
+                    int length;
+                    long end, truncate;
+                    boolean force, last;
+                    lock.lock();
+                    try {
+                        if(policy == SyncPolicy.EVERY_WRITE) {
+                            while(pendingLength == 0 && !syncRequested && truncateRequested == 0 && !closing) work.await();
+                        } else {
+                            long left = periodNanos;
+                            while(left > 0 && !syncRequested && !flushRequested && truncateRequested == 0 && !closing){
+                                left = work.awaitNanos(left);
+                            }
+                        }
+                        batch = pending;
+                        length = pendingLength;
+                        end = appendedLsn;
+                        pending = spare;
+                        pendingLength = 0;
+                        force = policy != SyncPolicy.OS || syncRequested || closing;
+                        syncRequested = false;
+                        flushRequested = false;
+                        truncate = truncateRequested;
+                        truncateRequested = 0;
+                        last = closing;
+                        room.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(batch, 0, length);
+                    while(buffer.hasRemaining()) channel.write(buffer);
+                    spare = batch;
+                    if(length > 0) written = end;
+                    if(force && written > durableLsn) {
+                        channel.force(false);
+                        forces.increment();
+                        synchronized(durableMonitor){
+                            durableLsn = written;
+                            durableMonitor.notifyAll();
+                        }
+                    }
+                    if(truncate > firstLsn) {
+                        truncateBefore(truncate, written);
+                        synchronized(durableMonitor){
+                            firstLsn = truncate;
+                            durableMonitor.notifyAll();
+                        }
+                    }
+                    if(last) return;
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException("log flusher interrupted"));
+            }
+        }
+
+        /**
+         * Copies the records from first to end, all of which are written, to
+         * a new file and moves it over the log. A crash leaves either file
+         * under the log's name, and both continue the checkpoint at first.
+         */
+        private void truncateBefore(long first, long end) throws IOException {
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            FileChannel copy = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES).putLong(0, first);
+                while(header.hasRemaining()) copy.write(header);
+                long from = LOG_HEADER_BYTES + first - firstLsn, to = LOG_HEADER_BYTES + end - firstLsn;
+                while(from < to) from += channel.transferTo(from, to - from, copy);
+                copy.force(true);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                BLTreeSnapshot.forceDirectory(path);
+            } catch (IOException | RuntimeException e) {
+                copy.close();
+                throw e;
+            }
+            channel.close();
+            channel = copy;
+        }
+
+        private void fail(IOException e) {
+            failure = e;
+            synchronized(durableMonitor){
+                durableMonitor.notifyAll();
+            }
+            lock.lock();
+            try {
+                room.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close() throws IOException {
+            lock.lock();
+            try {
+                if(closing) return;
+                closing = true;
+                work.signal();
+            } finally {
+                lock.unlock();
+            }
+            boolean interrupted = false;
+            while(flusher.isAlive()){
+                try {
+                    flusher.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            channel.close();
+            if(failure != null) throw failure;
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,308 @@
+package algorithms.bltree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read-optimized copy of a BLTreeMap, made by {@link BLTreeMap#freeze()}
+ * for read-mostly periods such as serving yesterday's data. The entries go
+ * into an immutable index that holds them in arrays in Eytzinger order: the
+ * root of a perfectly balanced search tree at 1, and the children of i at 2i
+ * and 2i+1. A lookup walks down the array with no pointer to follow, no lock
+ * and no version to validate, and computes the next index from the sign of
+ * the comparison instead of branching on it. The top levels of the tree
+ * share a few cache lines, which stay in cache across lookups. Long and
+ * Integer keys are also kept in a long array, so the search compares
+ * primitives and never loads a key object. String keys keep their first
+ * four chars packed into a long the same way, and the search loads a key
+ * only to break a tie between equal prefixes.
+ *
+ * Writes go to a small BLTreeMap in front of the index, the delta, which
+ * holds the keys put since the freeze and marks the removed ones. A lookup
+ * reads the delta first while it is not empty. The delta is meant to stay
+ * small: once it has grown, {@link #thaw} the map and freeze it again.
+ */
+public class FrozenBLTreeMap<K extends Comparable<K>,V> {
+    /** Largest number of entries, so that 2i+1 never overflows. */
+    public static final int MAX_ENTRIES = (1 << 30) - 1;
+
+    private static final Object REMOVED = new Object();
+    private static final int PREFIX_CHARS = 4;
+
+    private final int count;
+    private final Object[] keys;
+    private final Object[] values;
+    /** The keys as longs in the same order, when they are all of keyClass. */
+    private final long[] longKeys;
+    private final Class<?> keyClass;
+    /** Whether equal longs in longKeys mean equal keys, or only equal prefixes. */
+    private final boolean exactLongKeys;
+    private final BLTreeMap<K,Object> delta = new BLTreeMap<>();
+    private final AtomicInteger size;
+
+    /**
+     * Lays out entries, which must come in strictly ascending key order.
+     */
+    FrozenBLTreeMap(Iterator<? extends Map.Entry<K,V>> entries)
+    {
+        List<K> sortedKeys = new ArrayList<>();
+        List<V> sortedValues = new ArrayList<>();
+        K last = null;
+        while(entries.hasNext()){
+            Map.Entry<K,V> entry = entries.next();
+            K key = entry.getKey();
+            if(key == null || entry.getValue() == null) throw new NullPointerException();
+            if(last != null && last.compareTo(key) >= 0) throw new IllegalArgumentException("keys must be strictly ascending");
+            if(sortedKeys.size() == MAX_ENTRIES) throw new IllegalArgumentException("more than " + MAX_ENTRIES + " entries");
+            sortedKeys.add(key);
+            sortedValues.add(entry.getValue());
+            last = key;
+        }
+        count = sortedKeys.size();
+        keys = new Object[count + 1];
+        values = new Object[count + 1];
+        keyClass = count == 0 ? null : sortedKeys.get(0).getClass();
+        exactLongKeys = keyClass == Long.class || keyClass == Integer.class;
+        boolean packed = exactLongKeys || keyClass == String.class;
+        for(int j = 0; packed && j < count; ++j) packed = sortedKeys.get(j).getClass() == keyClass;
+        longKeys = packed ? new long[count + 1] : null;
+        // an in-order walk of the implicit tree visits the slots in key order
+        int i = first();
+        for(int j = 0; j < count; ++j){
+            keys[i] = sortedKeys.get(j);
+            values[i] = sortedValues.get(j);
+            if(longKeys != null) longKeys[i] = toLong(keys[i]);
+            i = successor(i);
+        }
+        size = new AtomicInteger(count);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Number of keys put or removed since the freeze, which is the size of
+     * the delta in front of the index.
+     */
+    public int deltaSize() {
+        return delta.size();
+    }
+
+    public V get(K key) {
+        if(!delta.isEmpty()) {
+            Object value = delta.get(key);
+            if(value != null) return value == REMOVED ? null : (V) value;
+        }
+        int i = indexOf(key);
+        return i == 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    public V put(K key, V value) {
+        if(key == null || value == null) throw new NullPointerException();
+        V old = previous(key, delta.put(key, value));
+        if(old == null) size.incrementAndGet();
+        return old;
+    }
+
+    /**
+     * A key of the index is removed by marking it in the delta, any other
+     * key by removing it from the delta.
+     */
+    public V remove(K key) {
+        Object deltaValue = indexOf(key) != 0 ? delta.put(key, REMOVED) : delta.remove(key);
+        V old = previous(key, deltaValue);
+        if(old != null) size.decrementAndGet();
+        return old;
+    }
+
+    /**
+     * The value key had before an update of the delta that replaced
+     * deltaValue. The index never changes, so it still holds the value when
+     * the delta held none.
+     */
+    private V previous(K key, Object deltaValue) {
+        if(deltaValue == REMOVED) return null;
+        if(deltaValue != null) return (V) deltaValue;
+        int i = indexOf(key);
+        return i == 0 ? null : (V) values[i];
+    }
+
+    /**
+     * Iterates in ascending key order over the entries in [lo, hi], where a
+     * null bound is open. The delta is read along the way, so writes made
+     * during the iteration may or may not be seen.
+     */
+    public Iterator<Map.Entry<K,V>> entryIterator(K lo, K hi) {
+        return new MergeIterator(lo, hi);
+    }
+
+    /**
+     * Builds a BLTreeMap with the given options from the index and the
+     * delta, perfectly balanced. Writes that run meanwhile may be missed, so
+     * stop writing to this map first.
+     */
+    public BLTreeMap<K,V> thaw(int options) {
+        List<Map.Entry<K,V>> entries = new ArrayList<>(size());
+        for(Iterator<Map.Entry<K,V>> it = entryIterator(null, null); it.hasNext();) entries.add(it.next());
+        BLTreeMap<K,V> tree = new BLTreeMap<>(options);
+        tree.bulkLoad(entries.iterator(), entries.size());
+        return tree;
+    }
+
+    /**
+     * Slot of key in the index, or 0.
+     */
+    private int indexOf(Object key) {
+        int i;
+        if(longKeys != null && key.getClass() == keyClass) {
+            long value = toLong(key);
+            if(exactLongKeys) {
+                i = lowerBound(value);
+                return i != 0 && longKeys[i] == value ? i : 0;
+            }
+            i = lowerBound((K) key, value);
+        } else {
+            i = lowerBound((K) key);
+        }
+        return i != 0 && ((K) keys[i]).compareTo((K) key) == 0 ? i : 0;
+    }
+
+    /**
+     * A long that orders like the key: the value of a Long or Integer, and
+     * for a String its first PREFIX_CHARS chars, padded with 0 and offset so
+     * that a signed compare orders them as unsigned.
+     */
+    private static long toLong(Object key) {
+        if(!(key instanceof String)) return ((Number) key).longValue();
+        String string = (String) key;
+        long prefix = 0;
+        for(int j = 0; j < PREFIX_CHARS; ++j) prefix = prefix << 16 | (j < string.length() ? string.charAt(j) : 0);
+        return prefix ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Slot of the least key not below key, or 0. The descent appends one bit
+     * per level to i, 1 to go right, and the slot found is where it last
+     * went left: strip the trailing ones and that left turn.
+     */
+    private int lowerBound(K key) {
+        Object[] keys = this.keys;
+        int n = count;
+        int i = 1;
+        while(i <= n) i = i << 1 | ((K) keys[i]).compareTo(key) >>> 31;
+        return i >>> Integer.numberOfTrailingZeros(~i) + 1;
+    }
+
+    private int lowerBound(long key) {
+        long[] keys = longKeys;
+        int n = count;
+        int i = 1;
+        while(i <= n) i = i << 1 | (keys[i] < key ? 1 : 0);
+        return i >>> Integer.numberOfTrailingZeros(~i) + 1;
+    }
+
+    private int lowerBound(K key, long prefix) {
+        long[] prefixes = longKeys;
+        int n = count;
+        int i = 1;
+        while(i <= n){
+            long other = prefixes[i];
+            int less = other < prefix ? 1 : other > prefix ? 0 : ((K) keys[i]).compareTo(key) >>> 31;
+            i = i << 1 | less;
+        }
+        return i >>> Integer.numberOfTrailingZeros(~i) + 1;
+    }
+
+    /**
+     * Slot of the least key, or 0 when the index is empty.
+     */
+    private int first() {
+        if(count == 0) return 0;
+        int i = 1;
+        while(i << 1 <= count) i <<= 1;
+        return i;
+    }
+
+    /**
+     * Slot of the next key in order after slot i, or 0.
+     */
+    private int successor(int i) {
+        if((i << 1 | 1) <= count) {
+            i = i << 1 | 1;
+            while(i << 1 <= count) i <<= 1;
+            return i;
+        }
+        while((i & 1) != 0) i >>>= 1;
+        return i >>> 1;
+    }
+
+    /**
+     * Merges the index with the delta, which is short, so it is read in
+     * order from its start and filtered to the range. A key in the delta
+     * overrides the index.
+     */
+    private class MergeIterator implements Iterator<Map.Entry<K,V>> {
+        private final K hi;
+        private final Iterator<Map.Entry<K,Object>> deltaEntries;
+        private int slot;
+        private Map.Entry<K,Object> deltaEntry;
+        private Map.Entry<K,V> next;
+
+        private MergeIterator(K lo, K hi)
+        {
+            this.hi = hi;
+            this.slot = lo == null ? first() : lowerBound(lo);
+            this.deltaEntries = delta.entrySet().iterator();
+            do {
+                deltaEntry = deltaEntries.hasNext() ? deltaEntries.next() : null;
+            } while(deltaEntry != null && lo != null && deltaEntry.getKey().compareTo(lo) < 0);
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while(next == null){
+                K key = slot == 0 ? null : (K) keys[slot];
+                if(deltaEntry != null && (key == null || deltaEntry.getKey().compareTo(key) <= 0)) {
+                    if(key != null && deltaEntry.getKey().compareTo(key) == 0) slot = successor(slot);
+                    key = deltaEntry.getKey();
+                    Object value = deltaEntry.getValue();
+                    deltaEntry = deltaEntries.hasNext() ? deltaEntries.next() : null;
+                    if(hi != null && key.compareTo(hi) > 0) return;
+                    if(value != REMOVED) next = new AbstractMap.SimpleImmutableEntry<>(key, (V) value);
+                } else {
+                    if(key == null || hi != null && key.compareTo(hi) > 0) return;
+                    next = new AbstractMap.SimpleImmutableEntry<>(key, (V) values[slot]);
+                    slot = successor(slot);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if(next == null) throw new NoSuchElementException();
+            Map.Entry<K,V> result = next;
+            advance();
+            return result;
+        }
+    }
+}
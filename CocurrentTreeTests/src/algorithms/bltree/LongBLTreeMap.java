@@ -0,0 +1,612 @@
+package algorithms.bltree;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import sun.misc.Unsafe;
+
+/**
+ * A BLTree from long keys to long values whose nodes live outside the Java
+ * heap, in slabs of SLAB_NODES fixed size nodes. A node is addressed by an
+ * int index (0 is null) and takes NODE_BYTES: key, value, version word and
+ * the two child indices.
+ *
+ * The version word follows the BLTreeMap protocol (DELETED_BIT, CHANGING_BIT,
+ * VERSION_STEP). Instead of a monitor every node carries LOCK_BIT in its
+ * version word, taken and released with CAS; readers mask it out, so taking
+ * a lock does not invalidate optimistic traversals.
+ *
+ * Unlinked nodes go to a free list and are reused right away. A node's
+ * version only moves forward, also across reuse, so a traversal that still
+ * holds an index and version of a reused node fails validation; the slabs are
+ * only released by {@link #close()}.
+ */
+public class LongBLTreeMap implements AutoCloseable {
+    private static final Unsafe unsafe = getUnsafe();
+
+    private static final int KEY = 0;
+    private static final int VALUE = 8;
+    private static final int VERSION = 16;
+    private static final int LEFT = 24;
+    private static final int RIGHT = 28;
+    private static final int NODE_SHIFT = 5;
+    private static final int NODE_BYTES = 1 << NODE_SHIFT;
+
+    private static final int SLAB_SHIFT = 16;
+    private static final int SLAB_NODES = 1 << SLAB_SHIFT;
+    private static final int SLAB_MASK = SLAB_NODES - 1;
+    private static final long SLAB_BYTES = (long) SLAB_NODES * NODE_BYTES;
+
+    private static final int NULL = 0;
+    private static final int ROOT = 1;
+
+    private static final long DELETED_BIT = 1;
+    private static final long CHANGING_BIT = 2;
+    private static final long ANY_LOCK = DELETED_BIT|CHANGING_BIT;
+    private static final long LOCK_BIT = 4;
+    private static final long VERSION_STEP = 8;
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private volatile long[] slabs = new long[0];
+    private final AtomicInteger nextIndex = new AtomicInteger(ROOT + 1);
+    /** Index of the first free node in the low half, ABA tag in the high half. */
+    private final AtomicLong freeList = new AtomicLong();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ThreadLocal<Search> searches = ThreadLocal.withInitial(Search::new);
+
+    public LongBLTreeMap()
+    {
+        ensureSlab(0);
+    }
+
+    private static Unsafe getUnsafe() {
+        Unsafe unsafe = null;
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+        } catch (Exception ignore) {}
+        return unsafe;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Bytes allocated outside the heap for nodes, including free ones.
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for(long slab : slabs) if(slab != 0) bytes += SLAB_BYTES;
+        return bytes;
+    }
+
+    public boolean containsKey(long key) {
+        return lookup(key, searches.get());
+    }
+
+    public long get(long key, long absentValue) {
+        Search search = searches.get();
+        return lookup(key, search) ? search.value : absentValue;
+    }
+
+    /**
+     * Finds key and reads its value into search.value. A node that is being
+     * rewritten with its successor's key and value is marked CHANGING for the
+     * whole rewrite, so a read that saw no mark and no version change before
+     * and after reading the value got a consistent pair.
+     */
+    private boolean lookup(long key, Search search) {
+        while(true){
+            find(key, search);
+            if(!search.found) return false;
+            if((search.nodeVersion & CHANGING_BIT) != 0) continue;
+            search.value = value(search.node);
+            if(version(search.node) == search.nodeVersion) return true;
+        }
+    }
+
+    /**
+     * Maps key to value. Returns true when the key was not present before.
+     */
+    public boolean put(long key, long value) {
+        Search search = searches.get();
+        while(true){
+            find(key, search);
+            int node = search.node;
+            lock(node);
+            try {
+                long nodeV = version(node);
+                if(nodeV != search.nodeVersion || (nodeV & ANY_LOCK) != 0) continue;
+                if(search.found) {
+                    unsafe.putLongVolatile(null, address(node) + VALUE, value);
+                    return false;
+                }
+                int dir = direction(node, key);
+                if(child(node, dir) != NULL) continue;
+                setChild(node, dir, allocate(key, value));
+                size.incrementAndGet();
+                return true;
+            } finally {
+                unlock(node);
+            }
+        }
+    }
+
+    /**
+     * Removes key. Returns true when the key was present.
+     */
+    public boolean remove(long key) {
+        Search search = searches.get();
+        while(true){
+            find(key, search);
+            if(!search.found) return false;
+            int parent = search.parent;
+            int node = search.node;
+            int unlinked;
+            lock(parent);
+            try {
+                // node may have been reused elsewhere; only lock it while it
+                // is still parent's child, so that locks are always taken top-down
+                if(version(parent) != search.parentVersion || child(parent, search.dir) != node) continue;
+                lock(node);
+                try {
+                    if(!search.validate()) continue;
+                    if(isMarked(parent) || isMarked(node)) continue;
+                    if(child(node, LEFT) == NULL || child(node, RIGHT) == NULL) {
+                        removeSingleChild(parent, search.dir, node);
+                        unlinked = node;
+                    } else {
+                        unlinked = removeHelper(parent, node, search);
+                        if(unlinked == NULL) continue;
+                    }
+                } finally {
+                    unlock(node);
+                }
+            } finally {
+                unlock(parent);
+            }
+            size.decrementAndGet();
+            free(unlinked);
+            return true;
+        }
+    }
+
+    /**
+     * Copies the successor's key and value into node and unlinks the
+     * successor, which is returned, or NULL when validation failed. The
+     * caller holds the locks of parent and node.
+     */
+    private int removeHelper(int parent, int node, Search search) {
+        int marked = 0;
+        setChanging(node);
+        search.push(node, marked++);
+        try {
+            int successorParent = node;
+            int successor = NULL;
+            int dir = RIGHT;
+            for(int pos = child(node, RIGHT); pos != NULL; pos = child(pos, LEFT)){
+                lock(pos);
+                try {
+                    if(isMarked(pos)) return NULL;
+                    setChanging(pos);
+                    search.push(pos, marked++);
+                } finally {
+                    unlock(pos);
+                }
+                if(successor != NULL) {
+                    successorParent = successor;
+                    dir = LEFT;
+                }
+                successor = pos;
+            }
+            if(successorParent != node) lock(successorParent);
+            try {
+                lock(successor);
+                try {
+                    if(child(successorParent, dir) != successor) return NULL;
+                    if(child(successor, LEFT) != NULL) return NULL;
+                    long address = address(node);
+                    unsafe.putLongVolatile(null, address + KEY, key(successor));
+                    unsafe.putLongVolatile(null, address + VALUE, value(successor));
+                    increaseVersion(node);
+                    increaseVersion(parent);
+                    removeSingleChild(successorParent, dir, successor);
+                    return successor;
+                }
+                finally {
+                    unlock(successor);
+                }
+            } finally {
+                if(successorParent != node) unlock(successorParent);
+            }
+        } finally {
+            while(marked > 0) unsetChanging(search.path[--marked]);
+        }
+    }
+
+    private void removeSingleChild(int parent, int dir, int node) {
+        setDeleted(node);
+        int left = child(node, LEFT);
+        setChild(parent, dir, left == NULL ? child(node, RIGHT) : left);
+    }
+
+    /**
+     * Descends from the root, validating each node's version after reading
+     * its child, and restarts from the root when a node changed underneath.
+     * Leaves the closest node and its parent in search.
+     */
+    private void find(long key, Search search) {
+        retry:
+        while(true){
+            int parent = NULL;
+            long parentV = 0;
+            int dir = RIGHT;
+            int node = ROOT;
+            long nodeV = version(ROOT);
+            int depth = 0;
+            boolean found;
+            while(true){
+                search.visit(depth++, node, nodeV);
+                if(node != ROOT && key(node) == key) {
+                    found = true;
+                    break;
+                }
+                int childDir = direction(node, key);
+                int child = child(node, childDir);
+                if(child == NULL) {
+                    found = false;
+                    break;
+                }
+                long childV = version(child);
+                if(version(node) != nodeV) continue retry;
+                if((childV & DELETED_BIT) != 0) continue retry;
+                parent = node;
+                parentV = nodeV;
+                dir = childDir;
+                node = child;
+                nodeV = childV;
+            }
+            // A removal rewrites the victim's key to its successor's, which
+            // narrows the range of the victim's right subtree after we may
+            // have passed the victim, so every node on the path is validated.
+            for(int i = 0; i < depth; ++i){
+                if(version(search.visited[i]) != search.visitedVersions[i]) continue retry;
+            }
+            search.parent = parent;
+            search.parentVersion = parentV;
+            search.dir = dir;
+            search.node = node;
+            search.nodeVersion = nodeV;
+            search.found = found;
+            return;
+        }
+    }
+
+    /**
+     * Copies up to out.length keys in [lo, hi] in ascending order into out and
+     * returns how many were copied. Like the views of BLTreeMap, the scan
+     * marks no node and is weakly consistent.
+     */
+    public int keys(long lo, long hi, long[] out) {
+        return scan(lo, hi, out, out.length);
+    }
+
+    /**
+     * Counts the keys in [lo, hi], weakly consistently.
+     */
+    public int count(long lo, long hi) {
+        return scan(lo, hi, null, Integer.MAX_VALUE);
+    }
+
+    private int scan(long lo, long hi, long[] out, int limit) {
+        if(lo > hi) return 0;
+        Scan scan = new Scan();
+        while(!scan.seek(lo, true)){}
+        int count = 0;
+        long last = lo;
+        while(scan.hasNext && count < limit && scan.nextKey <= hi){
+            if(scan.nextKey > last || (count == 0 && scan.nextKey == lo)) {
+                last = scan.nextKey;
+                if(out != null) out[count] = last;
+                ++count;
+            }
+            scan.moveNext();
+        }
+        return count;
+    }
+
+    /**
+     * Sum of the depths of all nodes. Walks the tree without locks, so it is
+     * only exact when there are no concurrent updates.
+     */
+    public long getSumOfDepths() {
+        long sum = 0;
+        int[] nodes = new int[64];
+        int[] depths = new int[64];
+        int top = 0;
+        nodes[top] = ROOT;
+        depths[top++] = 0;
+        while(top > 0){
+            int node = nodes[--top];
+            int depth = depths[top];
+            sum += depth;
+            if(top + 2 > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                depths = Arrays.copyOf(depths, depths.length * 2);
+            }
+            int left = child(node, LEFT), right = child(node, RIGHT);
+            if(left != NULL) { nodes[top] = left; depths[top++] = depth + 1; }
+            if(right != NULL) { nodes[top] = right; depths[top++] = depth + 1; }
+        }
+        return sum;
+    }
+
+    /**
+     * Releases the slabs. The map must not be used afterwards, and no other
+     * thread may be using it while it is closed.
+     */
+    @Override
+    public synchronized void close() {
+        long[] released = slabs;
+        slabs = new long[0];
+        for(long slab : released) if(slab != 0) unsafe.freeMemory(slab);
+    }
+
+    private int allocate(long key, long value) {
+        int node = popFree();
+        if(node == NULL) {
+            node = nextIndex.getAndIncrement();
+            if(node < 0) throw new OutOfMemoryError("LongBLTreeMap node index overflow");
+            int slab = node >>> SLAB_SHIFT;
+            long[] current = slabs;
+            if(slab >= current.length || current[slab] == 0) ensureSlab(slab);
+        }
+        long address = address(node);
+        unsafe.putLong(null, address + KEY, key);
+        unsafe.putLong(null, address + VALUE, value);
+        unsafe.putInt(null, address + LEFT, NULL);
+        unsafe.putInt(null, address + RIGHT, NULL);
+        updateVersion(node, 0, ANY_LOCK);
+        return node;
+    }
+
+    private synchronized void ensureSlab(int slab) {
+        long[] current = slabs;
+        if(slab < current.length && current[slab] != 0) return;
+        long[] grown = Arrays.copyOf(current, Math.max(current.length, slab + 1));
+        long address = unsafe.allocateMemory(SLAB_BYTES);
+        unsafe.setMemory(address, SLAB_BYTES, (byte) 0);
+        grown[slab] = address;
+        slabs = grown;
+    }
+
+    /**
+     * Pushes an unlinked node on the free list, linked through its left
+     * child. A traversal still standing on it sees its DELETED_BIT or a newer
+     * version and restarts.
+     */
+    private void free(int node) {
+        long address = address(node);
+        while(true){
+            long head = freeList.get();
+            unsafe.putIntVolatile(null, address + LEFT, (int) head);
+            long tagged = ((head >>> 32) + 1) << 32 | (node & 0xffffffffL);
+            if(freeList.compareAndSet(head, tagged)) return;
+        }
+    }
+
+    private int popFree() {
+        while(true){
+            long head = freeList.get();
+            int node = (int) head;
+            if(node == NULL) return NULL;
+            int next = child(node, LEFT);
+            long tagged = ((head >>> 32) + 1) << 32 | (next & 0xffffffffL);
+            if(freeList.compareAndSet(head, tagged)) return node;
+        }
+    }
+
+    private long address(int node) {
+        return slabs[node >>> SLAB_SHIFT] + ((long) (node & SLAB_MASK) << NODE_SHIFT);
+    }
+
+    private long key(int node) {
+        return unsafe.getLongVolatile(null, address(node) + KEY);
+    }
+
+    private long value(int node) {
+        return unsafe.getLongVolatile(null, address(node) + VALUE);
+    }
+
+    private int child(int node, int dir) {
+        return unsafe.getIntVolatile(null, address(node) + dir);
+    }
+
+    /**
+     * The root sorts before every key, so everything hangs off its right.
+     */
+    private int direction(int node, long key) {
+        return node == ROOT || key > key(node) ? RIGHT : LEFT;
+    }
+
+    private void setChild(int node, int dir, int child) {
+        increaseVersion(node);
+        unsafe.putIntVolatile(null, address(node) + dir, child);
+    }
+
+    private long version(int node) {
+        return unsafe.getLongVolatile(null, address(node) + VERSION) & ~LOCK_BIT;
+    }
+
+    private boolean isMarked(int node) {
+        return (version(node) & ANY_LOCK) != 0;
+    }
+
+    private void lock(int node) {
+        long address = address(node) + VERSION;
+        for(int spins = 1;; ++spins){
+            long version = unsafe.getLongVolatile(null, address);
+            if((version & LOCK_BIT) == 0 && unsafe.compareAndSwapLong(null, address, version, version | LOCK_BIT)) return;
+            if(spins % SPINS_BEFORE_YIELD == 0) Thread.yield();
+        }
+    }
+
+    private void unlock(int node) {
+        unsafe.getAndAddLong(null, address(node) + VERSION, -LOCK_BIT);
+    }
+
+    /**
+     * Sets and clears bits of the version word and advances it by one step,
+     * leaving LOCK_BIT as it is.
+     */
+    private void updateVersion(int node, long set, long clear) {
+        long address = address(node) + VERSION;
+        while(true){
+            long version = unsafe.getLongVolatile(null, address);
+            long updated = ((version | set) & ~clear) + VERSION_STEP;
+            if(unsafe.compareAndSwapLong(null, address, version, updated)) return;
+        }
+    }
+
+    private void setChanging(int node) {
+        updateVersion(node, CHANGING_BIT, 0);
+    }
+
+    private void unsetChanging(int node) {
+        updateVersion(node, 0, CHANGING_BIT);
+    }
+
+    private void setDeleted(int node) {
+        updateVersion(node, DELETED_BIT, 0);
+    }
+
+    private void increaseVersion(int node) {
+        updateVersion(node, 0, 0);
+    }
+
+    private class Search {
+        private boolean found;
+        private int parent;
+        private long parentVersion;
+        private int dir;
+        private int node;
+        private long nodeVersion;
+        private long value;
+        private int[] path = new int[16];
+        private int[] visited = new int[16];
+        private long[] visitedVersions = new long[16];
+
+        private boolean validate() {
+            if(version(node) != nodeVersion) return false;
+            if(version(parent) != parentVersion) return false;
+            return child(parent, dir) == node;
+        }
+
+        private void push(int node, int depth) {
+            if(depth == path.length) path = Arrays.copyOf(path, depth * 2);
+            path[depth] = node;
+        }
+
+        private void visit(int depth, int node, long version) {
+            if(depth == visited.length) {
+                visited = Arrays.copyOf(visited, depth * 2);
+                visitedVersions = Arrays.copyOf(visitedVersions, depth * 2);
+            }
+            visited[depth] = node;
+            visitedVersions[depth] = version;
+        }
+    }
+
+    private class Scan {
+        private int[] stackNodes = new int[16];
+        private long[] stackVersions = new long[16];
+        private int stackSize;
+
+        private int node;
+        private long nodeVersion;
+
+        private boolean hasNext;
+        private long nextKey;
+
+        private void moveNext(){
+            if(step()) return;
+            long fromKey = nextKey;
+            while(!seek(fromKey, false)){}
+        }
+
+        private boolean seek(long fromKey, boolean inclusive){
+            stackSize = 0;
+            int current = ROOT;
+            long currentV = version(ROOT);
+            int dir = RIGHT;
+            while(true){
+                if(current != ROOT){
+                    long key = key(current);
+                    if(key == fromKey && inclusive) return settle(current, currentV);
+                    dir = key > fromKey ? LEFT : RIGHT;
+                    if(dir == LEFT) push(current, currentV);
+                }
+                int child = child(current, dir);
+                long childV = child == NULL ? 0 : version(child);
+                if(version(current) != currentV || (currentV & DELETED_BIT) != 0) return false;
+                if(child == NULL) return pop();
+                current = child;
+                currentV = childV;
+            }
+        }
+
+        private boolean step(){
+            int current = this.node;
+            long currentV = this.nodeVersion;
+            int child = child(current, RIGHT);
+            long childV = child == NULL ? 0 : version(child);
+            if(version(current) != currentV) return false;
+            while(child != NULL){
+                push(child, childV);
+                int left = child(child, LEFT);
+                long leftV = left == NULL ? 0 : version(left);
+                if(version(child) != childV) return false;
+                child = left;
+                childV = leftV;
+            }
+            return pop();
+        }
+
+        private void push(int pushed, long version){
+            if(stackSize == stackNodes.length){
+                stackNodes = Arrays.copyOf(stackNodes, stackSize * 2);
+                stackVersions = Arrays.copyOf(stackVersions, stackSize * 2);
+            }
+            stackNodes[stackSize] = pushed;
+            stackVersions[stackSize] = version;
+            ++stackSize;
+        }
+
+        private boolean pop(){
+            if(stackSize == 0){
+                hasNext = false;
+                node = NULL;
+                return true;
+            }
+            --stackSize;
+            return settle(stackNodes[stackSize], stackVersions[stackSize]);
+        }
+
+        private boolean settle(int candidate, long candidateV){
+            long key = key(candidate);
+            if(version(candidate) != candidateV || (candidateV & DELETED_BIT) != 0) return false;
+            nextKey = key;
+            node = candidate;
+            nodeVersion = candidateV;
+            hasNext = true;
+            return true;
+        }
+    }
+}
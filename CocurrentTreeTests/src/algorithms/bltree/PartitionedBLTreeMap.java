@@ -0,0 +1,656 @@
+package algorithms.bltree;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * A forest of BLTreeMaps that splits the key space by range, so that updates
+ * of different ranges share no root, no monitors and no version words. Shard
+ * i holds the keys in [bounds[i-1], bounds[i]), and a key is routed to its
+ * shard by a binary search over the bounds. Unlike hash partitioning this
+ * keeps the shards in key order: the views visit them one after the other,
+ * so keySet, values and entrySet iterate in ascending order, and a range
+ * iterator only opens the shards that overlap its range.
+ *
+ * The bounds and shards form an immutable {@link Layout} that
+ * {@link #rebalance()} replaces when it splits a hot or oversized shard or
+ * merges two cold neighbours. An update holds its shard's read lock. A split
+ * or merge copies the shards at the boundary it moves while updates go on,
+ * and each update meanwhile also records its key with the shard. The copy
+ * is bulk loaded into balanced new trees, still without a lock, and only
+ * then are the old shards write-locked for a short handoff: the recorded
+ * keys are copied over once more, the old shards retired and the new layout
+ * published. Updates that find their shard retired retry with the new
+ * layout. Lookups take no lock: a lookup that still finds its shard live
+ * afterwards read it before it was retired. Views and range iterators keep
+ * the layout they started with, so after a rebalance they see the retired
+ * shards as they were when they were retired.
+ *
+ * The shards share one change stream under CHANGE_STREAM, and a copy keeps
+ * the expiry time of each entry under EXPIRY, so both carry over a split or
+ * merge.
+ */
+public class PartitionedBLTreeMap<K extends Comparable<K>,V> extends AbstractMap<K,V> {
+    /**
+     * A shard is split when it receives more than SPLIT_SHARE times its fair
+     * share of operations, or holds more than SPLIT_SHARE times the mean size.
+     * A single shard is split as soon as it receives operations.
+     */
+    private static final int SPLIT_SHARE = 2;
+    /**
+     * Two neighbours are merged when together they receive less than 1 /
+     * MERGE_SHARE of a fair share of operations and are no larger than the
+     * mean shard.
+     */
+    private static final int MERGE_SHARE = 2;
+    private static final int MIN_SPLIT_SIZE = 64;
+    /**
+     * A split or merge catches up with the writes made during its copy in up
+     * to CATCH_UP_ROUNDS rounds without a lock, until at most HANDOFF_KEYS
+     * are left to copy under the write lock.
+     */
+    private static final int CATCH_UP_ROUNDS = 8;
+    private static final int HANDOFF_KEYS = 256;
+
+    private final int options;
+    private final ChangeStream<K,V> changes;
+    private volatile Layout<K,V> layout;
+    private final EntrySetView entrySet = new EntrySetView();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private int maxShards = Integer.MAX_VALUE;
+    private Rebalancer rebalancer;
+
+    /**
+     * bounds must be strictly ascending; there is one shard more than bounds.
+     * options are the BLTreeMap options of every shard.
+     */
+    public PartitionedBLTreeMap(K[] bounds, int options)
+    {
+        for(int i = 1; i < bounds.length; ++i){
+            if(bounds[i - 1].compareTo(bounds[i]) >= 0) throw new IllegalArgumentException("bounds must be strictly ascending");
+        }
+        this.options = options;
+        this.changes = (options & BLTreeMap.CHANGE_STREAM) != 0 ? new ChangeStream<>(BLTreeMap.CHANGE_STREAM_CAPACITY) : null;
+        Shard<K,V>[] shards = shardArray(bounds.length + 1);
+        for(int i = 0; i < shards.length; ++i) shards[i] = new Shard<>(attach(newTree()));
+        this.layout = new Layout<>(bounds.clone(), shards);
+    }
+
+    /**
+     * A shard's tree without a change stream of its own; attach gives it the
+     * shared one once it holds its entries.
+     */
+    private BLTreeMap<K,V> newTree() {
+        return new BLTreeMap<>(options & ~BLTreeMap.CHANGE_STREAM);
+    }
+
+    private BLTreeMap<K,V> attach(BLTreeMap<K,V> tree) {
+        if(changes != null) tree.publishTo(changes);
+        return tree;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> K[] boundArray(int length) {
+        return (K[]) new Comparable<?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>,V> Shard<K,V>[] shardArray(int length) {
+        return (Shard<K,V>[]) new Shard<?,?>[length];
+    }
+
+    /**
+     * Places the bounds at evenly spaced quantiles of a sample of the expected
+     * keys, so that each shard receives about the same share of them. Equal
+     * quantiles collapse, so a skewed sample may yield fewer shards.
+     */
+    public static <K extends Comparable<K>,V> PartitionedBLTreeMap<K,V> fromSample(Collection<? extends K> sample, int partitions, int options) {
+        if(partitions <= 0) throw new IllegalArgumentException("partitions must be positive");
+        List<K> sorted = new ArrayList<>(sample);
+        Collections.sort(sorted);
+        List<K> bounds = new ArrayList<>();
+        for(int i = 1; i < partitions && !sorted.isEmpty(); ++i){
+            K bound = sorted.get((int) ((long) i * sorted.size() / partitions));
+            if(bounds.isEmpty() || bounds.get(bounds.size() - 1).compareTo(bound) < 0) bounds.add(bound);
+        }
+        return new PartitionedBLTreeMap<>(bounds.toArray(PartitionedBLTreeMap.<K>boundArray(bounds.size())), options);
+    }
+
+    public int shardCount() {
+        return layout.shards.length;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(Shard<K,V> shard : layout.shards) size += shard.tree.size();
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for(Shard<K,V> shard : layout.shards) if(!shard.tree.isEmpty()) return false;
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object keyObj) {
+        K key = (K) keyObj;
+        while(true){
+            Shard<K,V> shard = layout.shard(key);
+            shard.ops.increment();
+            boolean result = shard.tree.containsKey(key);
+            if(!shard.retired) return result;
+        }
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for(Shard<K,V> shard : layout.shards) if(shard.tree.containsValue(value)) return true;
+        return false;
+    }
+
+    @Override
+    public V get(Object keyObj) {
+        K key = (K) keyObj;
+        while(true){
+            Shard<K,V> shard = layout.shard(key);
+            shard.ops.increment();
+            V result = shard.tree.get(key);
+            if(!shard.retired) return result;
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        while(true){
+            Shard<K,V> shard = layout.shard(key);
+            long stamp = shard.lock.readLock();
+            try {
+                if(shard.retired) continue;
+                shard.ops.increment();
+                shard.recordWrite(key);
+                return shard.tree.put(key, value);
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Like BLTreeMap.put with a time to live. Requires EXPIRY in the options.
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        while(true){
+            Shard<K,V> shard = layout.shard(key);
+            long stamp = shard.lock.readLock();
+            try {
+                if(shard.retired) continue;
+                shard.ops.increment();
+                shard.recordWrite(key);
+                return shard.tree.put(key, value, ttl, unit);
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public V remove(Object keyObj) {
+        K key = (K) keyObj;
+        while(true){
+            Shard<K,V> shard = layout.shard(key);
+            long stamp = shard.lock.readLock();
+            try {
+                if(shard.retired) continue;
+                shard.ops.increment();
+                shard.recordWrite(key);
+                return shard.tree.remove(key);
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Write-locks all shards at once, in key order like a merge, so that no
+     * update falls between the clears of two shards, and a subscriber of the
+     * change stream sees one clear per shard with nothing in between. Starts
+     * over if a rebalance retired one of the shards meanwhile, and cancels
+     * any rebalance that is copying one.
+     */
+    @Override
+    public void clear() {
+        while(true){
+            Shard<K,V>[] shards = layout.shards;
+            long[] stamps = new long[shards.length];
+            int locked = 0;
+            try {
+                boolean retired = false;
+                for(; locked < shards.length; ++locked){
+                    stamps[locked] = shards[locked].lock.writeLock();
+                    retired |= shards[locked].retired;
+                }
+                if(retired) continue;
+                for(Shard<K,V> shard : shards){
+                    shard.written = null;
+                    shard.tree.clear();
+                }
+                return;
+            } finally {
+                for(int i = 0; i < locked; ++i) shards[i].lock.unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes the expired entries of all shards and returns how many.
+     */
+    public int purgeExpired() {
+        int expired = 0;
+        for(Shard<K,V> shard : layout.shards){
+            long stamp = shard.lock.readLock();
+            try {
+                if(!shard.retired) expired += shard.tree.purgeExpired();
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * The change stream that all shards share. Requires CHANGE_STREAM in the
+     * options. The changes of a key come in the order they were made, also
+     * across a split or merge that moves the key to another shard.
+     */
+    public ChangeStream<K,V> changes() {
+        if(changes == null) throw new UnsupportedOperationException("change stream is disabled");
+        return changes;
+    }
+
+    /**
+     * Entries with keys in [min, max]. Each shard's part is traversed like
+     * BLTreeMap.entryIterator, atomically and in that method's order; the
+     * shards are visited in key order, and each is only opened, and its part
+     * of the range marked, once the previous one is exhausted. The whole
+     * range is therefore not one atomic snapshot.
+     */
+    public Iterator<Map.Entry<K,V>> entryIterator(K min, K max) {
+        Layout<K,V> current = layout;
+        return new StitchedIterator(current.index(min), current.index(max), i -> current.shards[i].tree.entryIterator(min, max));
+    }
+
+    /**
+     * Sum of the depths of all nodes within their shards.
+     */
+    public long getSumOfDepths() {
+        long sum = 0;
+        for(Shard<K,V> shard : layout.shards) sum += shard.tree.getSumOfDepths();
+        return sum;
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        return entrySet;
+    }
+
+    public long splitCount() {
+        return splits.sum();
+    }
+
+    public long mergeCount() {
+        return merges.sum();
+    }
+
+    /**
+     * Looks at the operations each shard received since the last call and at
+     * the shard sizes, then splits the busiest shard at its median key if it
+     * is hot or oversized, or else merges the coldest pair of neighbours if
+     * both are cold and small. Returns the number of shards split or merged,
+     * at most one per call so that the layout follows a moving load gradually.
+     */
+    public synchronized int rebalance() {
+        Layout<K,V> current = layout;
+        int count = current.shards.length;
+        long[] rates = new long[count];
+        int[] sizes = new int[count];
+        long totalRate = 0, totalSize = 0;
+        for(int i = 0; i < count; ++i){
+            Shard<K,V> shard = current.shards[i];
+            long ops = shard.ops.sum();
+            rates[i] = ops - shard.lastOps;
+            shard.lastOps = ops;
+            sizes[i] = shard.tree.size();
+            totalRate += rates[i];
+            totalSize += sizes[i];
+        }
+        int busiest = 0;
+        for(int i = 1; i < count; ++i) if(rates[i] > rates[busiest]) busiest = i;
+        // a lone shard is never above its fair share, but it is the root
+        // contention the forest exists to avoid
+        boolean hot = count == 1 ? rates[0] > 0 : rates[busiest] * count > SPLIT_SHARE * totalRate;
+        boolean big = (long) sizes[busiest] * count > SPLIT_SHARE * totalSize;
+        if(count < maxShards && sizes[busiest] >= MIN_SPLIT_SIZE && (hot || big)) {
+            return split(current, busiest) ? 1 : 0;
+        }
+        if(count < 2 || totalRate == 0) return 0;
+        int coldest = 0;
+        for(int i = 1; i < count - 1; ++i){
+            if(rates[i] + rates[i + 1] < rates[coldest] + rates[coldest + 1]) coldest = i;
+        }
+        boolean cold = (rates[coldest] + rates[coldest + 1]) * count * MERGE_SHARE < totalRate;
+        boolean small = (long) (sizes[coldest] + sizes[coldest + 1]) * count <= totalSize;
+        if(cold && small) return merge(current, coldest) ? 1 : 0;
+        return 0;
+    }
+
+    private boolean split(Layout<K,V> current, int index) {
+        Shard<K,V> shard = current.shards[index];
+        Set<K> written = recordWrites(shard, null);
+        List<BLTreeMap.TimedEntry<K,V>> entries = shard.tree.timedEntries();
+        if(entries.size() < 2) {
+            shard.written = null;
+            return false;
+        }
+        int middle = entries.size() / 2;
+        K bound = entries.get(middle).getKey();
+        BLTreeMap<K,V> low = load(entries.subList(0, middle));
+        BLTreeMap<K,V> high = load(entries.subList(middle, entries.size()));
+        Function<K,BLTreeMap<K,V>> target = key -> key.compareTo(bound) < 0 ? low : high;
+        written = catchUp(shard, written, target);
+        if(written == null) return false;
+        long stamp = shard.lock.writeLock();
+        try {
+            // a clear cancelled the copy
+            if(shard.written != written) return false;
+            for(K key : written) target.apply(key).copyKey(key, shard.tree);
+            shard.written = null;
+            shard.retired = true;
+            K[] bounds = boundArray(1);
+            bounds[0] = bound;
+            Shard<K,V>[] shards = shardArray(2);
+            shards[0] = new Shard<>(attach(low));
+            shards[1] = new Shard<>(attach(high));
+            layout = current.replace(index, 1, bounds, shards);
+        } finally {
+            shard.lock.unlockWrite(stamp);
+        }
+        splits.increment();
+        return true;
+    }
+
+    private boolean merge(Layout<K,V> current, int index) {
+        Shard<K,V> left = current.shards[index], right = current.shards[index + 1];
+        Set<K> leftWritten = recordWrites(left, null), rightWritten = recordWrites(right, null);
+        List<BLTreeMap.TimedEntry<K,V>> entries = left.tree.timedEntries();
+        entries.addAll(right.tree.timedEntries());
+        BLTreeMap<K,V> merged = load(entries);
+        leftWritten = catchUp(left, leftWritten, key -> merged);
+        rightWritten = leftWritten == null ? null : catchUp(right, rightWritten, key -> merged);
+        if(rightWritten == null) {
+            left.written = null;
+            right.written = null;
+            return false;
+        }
+        long leftStamp = left.lock.writeLock();
+        try {
+            long rightStamp = right.lock.writeLock();
+            try {
+                if(left.written != leftWritten || right.written != rightWritten) return false;
+                for(K key : leftWritten) merged.copyKey(key, left.tree);
+                for(K key : rightWritten) merged.copyKey(key, right.tree);
+                left.written = null;
+                right.written = null;
+                left.retired = true;
+                right.retired = true;
+                Shard<K,V>[] shards = shardArray(1);
+                shards[0] = new Shard<>(attach(merged));
+                layout = current.replace(index, 2, boundArray(0), shards);
+            } finally {
+                right.lock.unlockWrite(rightStamp);
+            }
+        } finally {
+            left.lock.unlockWrite(leftStamp);
+        }
+        merges.increment();
+        return true;
+    }
+
+    /**
+     * Makes updates of the shard record their keys in a new set from now on
+     * and returns it, or null if a clear cancelled the copy, which it tells
+     * by the shard no longer recording into previous. Taking the write lock
+     * waits for the updates that began before and may have recorded into
+     * previous, so previous is complete once this returns, and every update
+     * that a copy begun earlier may miss is in one of the two.
+     */
+    private Set<K> recordWrites(Shard<K,V> shard, Set<K> previous) {
+        Set<K> written = ConcurrentHashMap.newKeySet();
+        long stamp = shard.lock.writeLock();
+        try {
+            if(shard.written != previous) return null;
+            shard.written = written;
+        } finally {
+            shard.lock.unlockWrite(stamp);
+        }
+        return written;
+    }
+
+    /**
+     * Copies the keys written since the copy of shard began to their new
+     * trees without a lock, in rounds: each round starts a new set for the
+     * writes made during the round and copies the keys of the last one. Stops
+     * once a round leaves at most HANDOFF_KEYS for the write-locked handoff,
+     * or after CATCH_UP_ROUNDS if updates come faster than they are copied.
+     * Returns the set that the handoff has to copy, or null if a clear
+     * cancelled the copy.
+     */
+    private Set<K> catchUp(Shard<K,V> shard, Set<K> written, Function<K,BLTreeMap<K,V>> target) {
+        for(int round = 0; round < CATCH_UP_ROUNDS && written.size() > HANDOFF_KEYS; ++round){
+            Set<K> caught = written;
+            written = recordWrites(shard, caught);
+            if(written == null) return null;
+            for(K key : caught) target.apply(key).copyKey(key, shard.tree);
+        }
+        return written;
+    }
+
+    /**
+     * Builds a balanced tree from a copy in key order, for a new shard.
+     */
+    private BLTreeMap<K,V> load(List<BLTreeMap.TimedEntry<K,V>> sorted) {
+        BLTreeMap<K,V> tree = newTree();
+        tree.bulkLoad(sorted.iterator(), sorted.size());
+        return tree;
+    }
+
+    /**
+     * Starts a daemon thread that calls {@link #rebalance()} every
+     * periodMillis and never grows the forest beyond maxShards.
+     */
+    public synchronized void startRebalancing(long periodMillis, int maxShards) {
+        if(periodMillis <= 0) throw new IllegalArgumentException("periodMillis must be positive");
+        if(maxShards <= 0) throw new IllegalArgumentException("maxShards must be positive");
+        if(rebalancer != null) throw new IllegalStateException("rebalancing is already running");
+        this.maxShards = maxShards;
+        rebalancer = new Rebalancer(periodMillis);
+        rebalancer.start();
+    }
+
+    public void stopRebalancing() {
+        Rebalancer running;
+        synchronized(this){
+            running = rebalancer;
+            rebalancer = null;
+        }
+        if(running == null) return;
+        running.interrupt();
+        boolean interrupted = false;
+        while(running.isAlive()) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    private class Rebalancer extends Thread {
+        private final long periodMillis;
+
+        private Rebalancer(long periodMillis) {
+            super("PartitionedBLTreeMap-rebalancer");
+            this.periodMillis = periodMillis;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(!isInterrupted()){
+                    Thread.sleep(periodMillis);
+                    rebalance();
+                }
+            } catch (InterruptedException e) {
+                // stopRebalancing
+            }
+        }
+    }
+
+    private static class Shard<K extends Comparable<K>,V> {
+        private final BLTreeMap<K,V> tree;
+        private final StampedLock lock = new StampedLock();
+        private final LongAdder ops = new LongAdder();
+        private volatile boolean retired;
+        /** Keys updated while a rebalance copies the shard, or null. */
+        private volatile Set<K> written;
+        /** ops at the previous rebalance; only read and written by rebalance. */
+        private long lastOps;
+
+        private Shard(BLTreeMap<K,V> tree) {
+            this.tree = tree;
+        }
+
+        /**
+         * Called by updates under the read lock.
+         */
+        private void recordWrite(K key) {
+            Set<K> keys = written;
+            if(keys != null) keys.add(key);
+        }
+    }
+
+    private static class Layout<K extends Comparable<K>,V> {
+        private final K[] bounds;
+        private final Shard<K,V>[] shards;
+
+        private Layout(K[] bounds, Shard<K,V>[] shards) {
+            this.bounds = bounds;
+            this.shards = shards;
+        }
+
+        private int index(K key) {
+            int low = 0, high = bounds.length;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(key.compareTo(bounds[mid]) < 0) high = mid;
+                else low = mid + 1;
+            }
+            return low;
+        }
+
+        private Shard<K,V> shard(K key) {
+            return shards[index(key)];
+        }
+
+        /**
+         * A layout with count shards from index on replaced by newShards and
+         * the count - 1 bounds between them replaced by newBounds.
+         */
+        private Layout<K,V> replace(int index, int count, K[] newBounds, Shard<K,V>[] newShards) {
+            K[] bounds = boundArray(this.bounds.length - (count - 1) + newBounds.length);
+            System.arraycopy(this.bounds, 0, bounds, 0, index);
+            System.arraycopy(newBounds, 0, bounds, index, newBounds.length);
+            System.arraycopy(this.bounds, index + count - 1, bounds, index + newBounds.length, this.bounds.length - (index + count - 1));
+            Shard<K,V>[] shards = shardArray(this.shards.length - count + newShards.length);
+            System.arraycopy(this.shards, 0, shards, 0, index);
+            System.arraycopy(newShards, 0, shards, index, newShards.length);
+            System.arraycopy(this.shards, index + count, shards, index + newShards.length, this.shards.length - (index + count));
+            return new Layout<>(bounds, shards);
+        }
+    }
+
+    /**
+     * Iterates over the shards of one layout in order. remove goes through
+     * the map, so that it reaches the current shard of the key.
+     */
+    private class StitchedIterator implements Iterator<Map.Entry<K,V>> {
+        private final IntFunction<Iterator<Map.Entry<K,V>>> open;
+        private final int last;
+        private int nextShard;
+        private Iterator<Map.Entry<K,V>> current;
+        private K lastKey;
+
+        private StitchedIterator(int first, int last, IntFunction<Iterator<Map.Entry<K,V>>> open) {
+            this.open = open;
+            this.last = last;
+            this.current = open.apply(first);
+            this.nextShard = first + 1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(!current.hasNext() && nextShard <= last) current = open.apply(nextShard++);
+            return current.hasNext();
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            Map.Entry<K,V> entry = current.next();
+            lastKey = entry.getKey();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if(lastKey == null) throw new IllegalStateException();
+            PartitionedBLTreeMap.this.remove(lastKey);
+            lastKey = null;
+        }
+    }
+
+    private class EntrySetView extends AbstractSet<Map.Entry<K,V>> {
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            Layout<K,V> current = layout;
+            return new StitchedIterator(0, current.shards.length - 1, i -> current.shards[i].tree.entrySet().iterator());
+        }
+
+        @Override
+        public int size() {
+            return PartitionedBLTreeMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if(!(o instanceof Map.Entry)) return false;
+            Map.Entry<?,?> entry = (Map.Entry<?,?>) o;
+            V value = get(entry.getKey());
+            return value != null && value.equals(entry.getValue());
+        }
+
+        @Override
+        public void clear() {
+            PartitionedBLTreeMap.this.clear();
+        }
+    }
+}
@@ -1,8 +1,19 @@
 package main;
 
 import algorithms.bltree.BLTreeMap;
+import algorithms.bltree.BLTreeSnapshot;
+import algorithms.bltree.BoundedBLTreeMap;
+import algorithms.bltree.ChangeStream;
+import algorithms.bltree.Codec;
+import algorithms.bltree.DurableBLTreeMap;
+import algorithms.bltree.FrozenBLTreeMap;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 
 public class FunctionalityTests {
@@ -61,6 +72,26 @@ public class FunctionalityTests {
             }
         }
 
+        if (mapClass == BLTreeMap.class) {
+            conservationTest("Hot keys (elimination) ", BLTreeMap.ELIMINATION, size);
+            conservationTest("Hot keys (combining)   ", BLTreeMap.FLAT_COMBINING, size);
+            transferTest("Transfers              ", 0, size);
+            transferTest("Transfers (recycling)  ", BLTreeMap.LAZY_REMOVAL | BLTreeMap.RECYCLE_NODES, size);
+            hashIndexTest("Hash index             ", 0, size);
+            hashIndexTest("Hash index (recycling) ", BLTreeMap.LAZY_REMOVAL | BLTreeMap.RECYCLE_NODES, size);
+            evictionTest("Eviction (lowest keys) ", BoundedBLTreeMap.Eviction.LOWEST_KEYS, size);
+            evictionTest("Eviction (LRU)         ", BoundedBLTreeMap.Eviction.LEAST_RECENTLY_USED, size);
+            frozenTest("Frozen                 ", k -> k, size);
+            frozenTest("Frozen (string keys)   ", k -> "key" + k, size);
+            expiryTest("Expiry                 ", 0, size);
+            expiryTest("Expiry (lazy removal)  ", BLTreeMap.LAZY_REMOVAL, size);
+            changeStreamTest("Change stream          ", size);
+            walTest("Log (every write)      ", DurableBLTreeMap.SyncPolicy.EVERY_WRITE, size);
+            walTest("Log (periodic)         ", DurableBLTreeMap.SyncPolicy.PERIODIC, size);
+            walTest("Log (OS)               ", DurableBLTreeMap.SyncPolicy.OS, size);
+            deltaTest("Delta checkpoints      ", size);
+        }
+
         TestTimer.printStats();
 
 
@@ -416,6 +447,527 @@ public class FunctionalityTests {
         timer.finish();
     }
 
+    // Threads pass tokens between a few hot keys: a token taken out by
+    // remove, or pushed out by put, is put back, so none may be lost or
+    // duplicated whichever way the updates are applied.
+    static void conservationTest(String nm, int options, int size) throws InterruptedException {
+        final BLTreeMap<Integer,Integer> tree = new BLTreeMap<>(options);
+        final int keys = 8, tokens = 6, ops = size * 16;
+        for (int i = 0; i < tokens; ++i) tree.put(i, i);
+        Thread[] workers = new Thread[4];
+        timer.start(nm, ops * workers.length);
+        for (int t = 0; t < workers.length; ++t) {
+            final Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < ops; ++i) {
+                    Integer token = tree.remove(random.nextInt(keys));
+                    while (token != null) token = tree.put(random.nextInt(keys), token);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        timer.finish();
+        boolean[] seen = new boolean[tokens];
+        for (Map.Entry<Integer,Integer> entry : tree.entrySet()) {
+            reallyAssert(!seen[entry.getValue()]);
+            seen[entry.getValue()] = true;
+        }
+        for (boolean found : seen) reallyAssert(found);
+        reallyAssert(tree.size() == tokens);
+    }
+
+    static void transferTest(String nm, int options, int size) throws InterruptedException {
+        final BLTreeMap<Integer,Integer> tree = new BLTreeMap<>(options);
+        final int accounts = 16, balance = 10, total = accounts * balance, ops = size * 4;
+        for (int i = 0; i < accounts; ++i) tree.put(i, balance);
+        final int[] badAudits = new int[1];
+        Thread[] workers = new Thread[4];
+        timer.start(nm, ops * workers.length);
+        for (int t = 0; t < workers.length - 1; ++t) {
+            final Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < ops; ++i) {
+                    final int from = random.nextInt(accounts), to = random.nextInt(accounts);
+                    if (from == to) continue;
+                    tree.transaction(tx -> {
+                        Integer available = tx.get(from);
+                        if (available == null) return;
+                        int amount = 1 + random.nextInt(available);
+                        Integer target = tx.get(to);
+                        // an empty account is removed, so transfers also insert
+                        if (amount == available) tx.remove(from);
+                        else tx.put(from, available - amount);
+                        tx.put(to, (target == null ? 0 : target) + amount);
+                    });
+                }
+            });
+        }
+        workers[workers.length - 1] = new Thread(() -> {
+            final int[] sum = new int[1];
+            for (int i = 0; i < ops; ++i) {
+                tree.transaction(tx -> {
+                    sum[0] = 0;
+                    for (int a = 0; a < accounts; ++a) {
+                        Integer money = tx.get(a);
+                        if (money != null) sum[0] += money;
+                    }
+                });
+                if (sum[0] != total) ++badAudits[0];
+            }
+        });
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        timer.finish();
+        reallyAssert(badAudits[0] == 0);
+        int sum = 0;
+        for (Map.Entry<Integer,Integer> entry : tree.entrySet()) {
+            reallyAssert(entry.getValue() > 0);
+            sum += entry.getValue();
+        }
+        reallyAssert(sum == total);
+    }
+
+    static void hashIndexTest(String nm, int options, int size) throws InterruptedException {
+        BLTreeMap<Integer,Integer> tree = new BLTreeMap<>(BLTreeMap.HASH_INDEX | options);
+        TreeMap<Integer,Integer> expected = new TreeMap<>();
+        // ascending inserts leave a list for maintenance to rotate
+        for (int i = 0; i < size; ++i) {
+            tree.put(i, i);
+            expected.put(i, i);
+        }
+        Random random = new Random(size);
+        int ops = size * 64;
+        tree.startMaintenance(1, 1.0);
+        timer.start(nm, ops);
+        for (int i = 0; i < ops || tree.getMaintenanceStats().rotations == 0 && i < ops * 16; ++i) {
+            Integer k = random.nextInt(size);
+            if (random.nextBoolean()) reallyAssert(Objects.equals(tree.remove(k), expected.remove(k)));
+            else reallyAssert(Objects.equals(tree.put(k, i), expected.put(k, i)));
+            Integer probe = random.nextInt(size);
+            reallyAssert(Objects.equals(tree.get(probe), expected.get(probe)));
+        }
+        timer.finish();
+        tree.stopMaintenance();
+        reallyAssert(tree.getMaintenanceStats().rotations > 0);
+        for (int k = 0; k < size; ++k) {
+            reallyAssert(Objects.equals(tree.get(k), expected.get(k)));
+            reallyAssert(tree.containsKey(k) == expected.containsKey(k));
+        }
+        reallyAssert(tree.size() == expected.size());
+        reallyAssert(tree.equals(expected));
+    }
+
+    // Threads put keys of weight 1 to 4 far beyond the capacity. Once they
+    // are done, one more put must evict down within it, and the weight the
+    // map keeps must be that of the entries it holds.
+    static void evictionTest(String nm, BoundedBLTreeMap.Eviction eviction, int size) throws InterruptedException {
+        final int capacity = size, keys = size * 4, ops = size * 16;
+        final BoundedBLTreeMap<Integer,Integer> map = new BoundedBLTreeMap<>(capacity, eviction, (k, v) -> 1 + (k & 3), 0);
+        Thread[] workers = new Thread[4];
+        timer.start(nm, ops * workers.length);
+        for (int t = 0; t < workers.length; ++t) {
+            final Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < ops; ++i) {
+                    Integer k = random.nextInt(keys);
+                    int op = random.nextInt(4);
+                    if (op == 0) {
+                        map.remove(k);
+                    } else if (op == 1) {
+                        Integer value = map.get(k);
+                        reallyAssert(value == null || value.equals(k));
+                    } else {
+                        map.put(k, k);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        timer.finish();
+        map.put(keys, keys);
+        reallyAssert(map.weight() <= capacity);
+        reallyAssert(map.evictedCount() > 0);
+        long weight = 0;
+        int count = 0;
+        for (int k = 0; k <= keys; ++k) {
+            Integer value = map.get(k);
+            if (value == null) continue;
+            reallyAssert(value == k);
+            weight += 1 + (k & 3);
+            ++count;
+        }
+        reallyAssert(weight == map.weight());
+        reallyAssert(count == map.size());
+
+        BoundedBLTreeMap<Integer,Integer> ordered = new BoundedBLTreeMap<>(capacity, eviction);
+        if (eviction == BoundedBLTreeMap.Eviction.LOWEST_KEYS) {
+            // what is left of ascending puts is the highest keys
+            for (int k = 0; k < keys; ++k) ordered.put(k, k);
+            for (int k = 0; k < keys; ++k) reallyAssert(ordered.containsKey(k) == k >= keys - ordered.size());
+        } else {
+            // keys read between the clock's passes over them are never evicted
+            int hot = capacity / 8, period = Math.max(1, capacity / 16);
+            for (int k = 0; k < keys; ++k) {
+                if (k % period == 0) {
+                    for (int h = 0; h < hot; ++h) ordered.get(-h - 1);
+                }
+                if (k < hot) ordered.put(-k - 1, k);
+                else ordered.put(k, k);
+            }
+            for (int h = 0; h < hot; ++h) reallyAssert(ordered.containsKey(-h - 1));
+        }
+        reallyAssert(ordered.weight() <= capacity);
+    }
+
+    // Lookups and ranges of a frozen map must agree with a TreeMap, also
+    // while writes pile up in its delta. String keys share their first
+    // chars, so the search has to break ties between equal prefixes.
+    static <K extends Comparable<K>> void frozenTest(String nm, Function<Integer,K> toKey, int size) {
+        BLTreeMap<K,Integer> tree = new BLTreeMap<>();
+        TreeMap<K,Integer> expected = new TreeMap<>();
+        Random random = new Random(size);
+        int keys = size * 2, ops = size * 16;
+        for (int i = 0; i < size; ++i) {
+            K k = toKey.apply(random.nextInt(keys));
+            tree.put(k, i);
+            expected.put(k, i);
+        }
+        FrozenBLTreeMap<K,Integer> frozen = tree.freeze();
+        checkRange(frozen, expected, null, null);
+        timer.start(nm, ops);
+        for (int i = 0; i < ops; ++i) {
+            K k = toKey.apply(random.nextInt(keys + 2) - 1);
+            reallyAssert(Objects.equals(frozen.get(k), expected.get(k)));
+            reallyAssert(frozen.containsKey(k) == expected.containsKey(k));
+            if ((i & 7) == 0) {
+                if (random.nextBoolean()) reallyAssert(Objects.equals(frozen.remove(k), expected.remove(k)));
+                else reallyAssert(Objects.equals(frozen.put(k, -i - 1), expected.put(k, -i - 1)));
+            }
+            if ((i & 255) == 0) {
+                K lo = toKey.apply(random.nextInt(keys)), hi = toKey.apply(random.nextInt(keys));
+                if (lo.compareTo(hi) > 0) checkRange(frozen, expected, hi, lo);
+                else checkRange(frozen, expected, lo, hi);
+            }
+        }
+        timer.finish();
+        reallyAssert(frozen.size() == expected.size());
+        checkRange(frozen, expected, null, null);
+        reallyAssert(frozen.thaw(0).equals(expected));
+    }
+
+    // Compares the entries of frozen in [lo, hi], or all of them if lo and
+    // hi are null, with those of expected.
+    static <K extends Comparable<K>> void checkRange(FrozenBLTreeMap<K,Integer> frozen, TreeMap<K,Integer> expected, K lo, K hi) {
+        Map<K,Integer> range = lo == null ? expected : expected.subMap(lo, true, hi, true);
+        Iterator<Map.Entry<K,Integer>> it = frozen.entryIterator(lo, hi);
+        for (Map.Entry<K,Integer> entry : range.entrySet()) {
+            reallyAssert(it.hasNext());
+            reallyAssert(entry.equals(it.next()));
+        }
+        reallyAssert(!it.hasNext());
+    }
+
+    // Entries with a short time to live read as absent once it runs out,
+    // through gets, the hash index, the views and transactions, but count
+    // in size() until purgeExpired removes them; a plain put takes the
+    // expiry away, and entries that are not due stay.
+    static void expiryTest(String nm, int options, int size) throws InterruptedException {
+        BLTreeMap<Integer,Integer> tree = new BLTreeMap<>(BLTreeMap.EXPIRY | BLTreeMap.HASH_INDEX | options);
+        TreeMap<Integer,Integer> expected = new TreeMap<>();
+        final long ttl = 20;
+        timer.start(nm, size);
+        for (int k = 0; k < size; ++k) {
+            if (k % 4 == 0) {
+                tree.put(k, k, ttl, TimeUnit.MILLISECONDS);
+                if (k % 8 == 4) {
+                    tree.put(k, -k);
+                    expected.put(k, -k);
+                }
+            } else {
+                if (k % 4 == 2) tree.put(k, k, 1, TimeUnit.HOURS);
+                else tree.put(k, k);
+                expected.put(k, k);
+            }
+        }
+        timer.finish();
+        Thread.sleep(ttl * 3);
+        reallyAssert(tree.size() == size);
+        checkLive(tree, expected, size);
+        tree.transaction(tx -> {
+            reallyAssert(tx.get(8) == null);
+            reallyAssert(!tx.containsKey(8));
+            reallyAssert(tx.put(0, 0) == null);
+        });
+        expected.put(0, 0);
+        reallyAssert(tree.get(0) == 0);
+
+        int due = 0;
+        for (int k = 8; k < size; k += 8) ++due;
+        reallyAssert(tree.purgeExpired() == due);
+        reallyAssert(tree.purgeExpired() == 0);
+        reallyAssert(tree.size() == expected.size());
+        checkLive(tree, expected, size);
+
+        // a new expiry time replaces the old one in the index
+        int replaced = 0;
+        for (int k = 2; k < size; k += 4) {
+            tree.put(k, k, ttl, TimeUnit.MILLISECONDS);
+            expected.remove(k);
+            ++replaced;
+        }
+        Thread.sleep(ttl * 3);
+        reallyAssert(tree.purgeExpired() == replaced);
+        reallyAssert(tree.size() == expected.size());
+        checkLive(tree, expected, size);
+    }
+
+    static void checkLive(BLTreeMap<Integer,Integer> tree, TreeMap<Integer,Integer> expected, int size) {
+        for (int k = -1; k <= size; ++k) {
+            reallyAssert(Objects.equals(tree.get(k), expected.get(k)));
+            reallyAssert(tree.containsKey(k) == expected.containsKey(k));
+        }
+        reallyAssert(new ArrayList<>(tree.keySet()).equals(new ArrayList<>(expected.keySet())));
+        reallyAssert(new ArrayList<>(tree.values()).equals(new ArrayList<>(expected.values())));
+        reallyAssert(new ArrayList<>(tree.entrySet()).equals(new ArrayList<>(expected.entrySet())));
+        Iterator<Map.Entry<Integer,Integer>> it = tree.entryIterator(0, size);
+        for (Map.Entry<Integer,Integer> entry : expected.entrySet()) {
+            reallyAssert(it.hasNext());
+            reallyAssert(entry.equals(it.next()));
+        }
+        reallyAssert(!it.hasNext());
+    }
+
+    // Producers overrun the change stream while one subscription keeps
+    // polling and another never does; then a replica is built from a
+    // subscription that keeps up.
+    static void changeStreamTest(String nm, int size) throws InterruptedException {
+        final BLTreeMap<Integer,Integer> tree = new BLTreeMap<>(BLTreeMap.CHANGE_STREAM);
+        final ChangeStream<Integer,Integer> changes = tree.changes();
+        final int producers = 4, keys = 64, ops = changes.capacity() / 2;
+        ChangeStream<Integer,Integer>.Subscription stalled = changes.subscribe();
+        ChangeStream<Integer,Integer>.Subscription polling = changes.subscribe();
+        Thread[] workers = new Thread[producers];
+        timer.start(nm, ops * producers);
+        for (int t = 0; t < producers; ++t) {
+            final int first = t * keys;
+            final Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < ops; ++i) tree.put(first + random.nextInt(keys), i);
+            });
+            workers[t].start();
+        }
+        final long[] next = new long[1], delivered = new long[1], lost = new long[1];
+        final int[] last = new int[producers * keys];
+        Arrays.fill(last, -1);
+        ChangeStream.Handler<Integer,Integer> checker = new ChangeStream.Handler<Integer,Integer>() {
+            @Override
+            public void onChange(long sequence, Integer key, Integer value) {
+                reallyAssert(sequence == next[0]);
+                // each producer puts ascending values to its own keys
+                reallyAssert(value > last[key]);
+                last[key] = value;
+                ++next[0];
+                ++delivered[0];
+            }
+
+            @Override
+            public void onLoss(long from, long to) {
+                reallyAssert(from == next[0] && to > from);
+                next[0] = to;
+                lost[0] += to - from;
+            }
+        };
+        boolean producing = true;
+        while (producing) {
+            producing = false;
+            for (Thread worker : workers) producing |= worker.isAlive();
+            polling.poll(checker, 16);
+            Thread.yield();
+        }
+        for (Thread worker : workers) worker.join();
+        while (polling.poll(checker, Integer.MAX_VALUE) > 0) {}
+        timer.finish();
+        long published = changes.sequence();
+        reallyAssert(published == (long) ops * producers);
+        reallyAssert(delivered[0] + lost[0] == published);
+        reallyAssert(polling.lost() == lost[0]);
+        int kept = stalled.poll((sequence, key, value) -> {}, Integer.MAX_VALUE);
+        reallyAssert(kept == changes.capacity());
+        reallyAssert(stalled.lost() == published - changes.capacity());
+        stalled.close();
+        polling.close();
+
+        // fewer changes than the ring holds, so nothing is lost
+        final BLTreeMap<Integer,Integer> source = new BLTreeMap<>(BLTreeMap.CHANGE_STREAM);
+        ChangeStream<Integer,Integer>.Subscription subscription = source.changes().subscribe();
+        final int updates = Math.min(size * 4, source.changes().capacity() / producers);
+        for (int t = 0; t < producers; ++t) {
+            final Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < updates; ++i) {
+                    Integer k = random.nextInt(size);
+                    if (random.nextInt(4) == 0) source.remove(k);
+                    else source.put(k, i);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        final TreeMap<Integer,Integer> replica = new TreeMap<>();
+        subscription.poll((sequence, key, value) -> {
+            if (key == null) replica.clear();
+            else if (value == null) replica.remove(key);
+            else replica.put(key, value);
+        }, Integer.MAX_VALUE);
+        reallyAssert(subscription.lost() == 0);
+        reallyAssert(subscription.lag() == 0);
+        reallyAssert(replica.equals(source));
+        subscription.close();
+    }
+
+    // Replays a log written by concurrent updates, again after a torn
+    // record is appended to it, and from a checkpoint, which must cut the
+    // records before it off the log.
+    static void walTest(String nm, DurableBLTreeMap.SyncPolicy policy, int size) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("wal");
+        Path log = dir.resolve("log"), snapshot = dir.resolve("snapshot");
+        try {
+            final DurableBLTreeMap<Integer,Integer> map = openLog(log, null, policy);
+            final int ops = size * 2;
+            Thread[] workers = new Thread[4];
+            timer.start(nm, ops * workers.length);
+            for (int t = 0; t < workers.length; ++t) {
+                final Random random = new Random(t);
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < ops; ++i) {
+                        Integer k = random.nextInt(size);
+                        if (random.nextInt(4) == 0) map.remove(k);
+                        else map.put(k, i);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) worker.join();
+            timer.finish();
+            // with every write forced, the writers waiting on one force
+            // are committed together
+            if (policy == DurableBLTreeMap.SyncPolicy.EVERY_WRITE) reallyAssert(map.forceCount() < map.recordCount());
+            TreeMap<Integer,Integer> expected = new TreeMap<>(map.tree());
+            map.close();
+            long length = Files.size(log);
+            DurableBLTreeMap<Integer,Integer> reopened = openLog(log, null, policy);
+            reallyAssert(reopened.tree().equals(expected));
+            reopened.close();
+
+            Files.write(log, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+            reopened = openLog(log, null, policy);
+            reallyAssert(Files.size(log) == length);
+            reallyAssert(reopened.tree().equals(expected));
+
+            reallyAssert(reopened.checkpoint(snapshot) == expected.size());
+            long cut = Files.size(log);
+            reallyAssert(cut < length);
+            for (int k = 0; k < size; k += 2) {
+                reopened.put(k, -k);
+                expected.put(k, -k);
+            }
+            reopened.close();
+            // the log no longer starts at the beginning
+            try {
+                openLog(log, null, policy).close();
+                reallyAssert(false);
+            } catch (IOException expectedFailure) {
+            }
+            reopened = openLog(log, snapshot, policy);
+            reallyAssert(reopened.tree().equals(expected));
+            reopened.close();
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    static DurableBLTreeMap<Integer,Integer> openLog(Path log, Path snapshot, DurableBLTreeMap.SyncPolicy policy) throws IOException {
+        return new DurableBLTreeMap<>(new BLTreeMap<Integer,Integer>(), log, snapshot, Codec.INTEGER, Codec.INTEGER, policy, 5);
+    }
+
+    // Restarts from every prefix of a chain of delta checkpoints, each with
+    // a copy of the log taken right after its last delta; the first delta
+    // writes the whole map. Once the log is cut at the last delta only the
+    // whole chain, or a compaction of it, continues the log.
+    static void deltaTest(String nm, int size) throws IOException {
+        Path dir = Files.createTempDirectory("delta");
+        Path log = dir.resolve("log");
+        try {
+            DurableBLTreeMap<Integer,Integer> map = openLog(log, null, DurableBLTreeMap.SyncPolicy.OS);
+            Random random = new Random(size);
+            for (int k = 0; k < size; ++k) map.put(k, k);
+            final int deltas = 4, ops = size / 4;
+            List<Path> chain = new ArrayList<>();
+            List<Path> logs = new ArrayList<>();
+            List<TreeMap<Integer,Integer>> states = new ArrayList<>();
+            timer.start(nm, ops * deltas);
+            for (int d = 0; d < deltas; ++d) {
+                if (d > 0) {
+                    for (int i = 0; i < ops; ++i) {
+                        Integer k = random.nextInt(size * 2);
+                        if (random.nextInt(3) == 0) map.remove(k);
+                        else map.put(k, i);
+                    }
+                }
+                Path delta = dir.resolve("delta" + d);
+                long count = map.checkpointDelta(delta);
+                reallyAssert(d > 0 || count == size);
+                chain.add(delta);
+                logs.add(Files.copy(log, dir.resolve("log" + d)));
+                states.add(new TreeMap<>(map.tree()));
+            }
+            timer.finish();
+            map.close();
+            for (int d = 0; d < deltas; ++d) {
+                reallyAssert(BLTreeSnapshot.open(chain.get(d), Codec.INTEGER, Codec.INTEGER).isDelta() == d > 0);
+                DurableBLTreeMap<Integer,Integer> restarted = openChain(logs.get(d), chain.subList(0, d + 1));
+                reallyAssert(restarted.tree().equals(states.get(d)));
+                restarted.close();
+                if (d == deltas - 1) continue;
+                try {
+                    openChain(log, chain.subList(0, d + 1)).close();
+                    reallyAssert(false);
+                } catch (IOException expected) {
+                }
+            }
+            TreeMap<Integer,Integer> last = states.get(deltas - 1);
+            DurableBLTreeMap<Integer,Integer> restarted = openChain(log, chain);
+            reallyAssert(restarted.tree().equals(last));
+            restarted.close();
+
+            List<BLTreeSnapshot<Integer,Integer>> images = new ArrayList<>();
+            for (Path delta : chain) images.add(BLTreeSnapshot.open(delta, Codec.INTEGER, Codec.INTEGER));
+            Path compacted = dir.resolve("compacted");
+            long position = images.get(deltas - 1).logPosition();
+            reallyAssert(BLTreeSnapshot.write(BLTreeSnapshot.merge(images), compacted, Codec.INTEGER, Codec.INTEGER, position) == last.size());
+            restarted = openChain(log, Collections.singletonList(compacted));
+            reallyAssert(restarted.tree().equals(last));
+            restarted.close();
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    static DurableBLTreeMap<Integer,Integer> openChain(Path log, List<Path> chain) throws IOException {
+        return new DurableBLTreeMap<>(new BLTreeMap<Integer,Integer>(), log, chain, Codec.INTEGER, Codec.INTEGER,
+                DurableBLTreeMap.SyncPolicy.OS, 5);
+    }
+
+    static void deleteDirectory(Path dir) throws IOException {
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) Files.delete(file.toPath());
+        }
+        Files.delete(dir);
+    }
+
     static void test(Map<Integer,Integer> s, Integer[] key) {
         int size = key.length;
 
@@ -428,7 +980,7 @@ public class FunctionalityTests {
         reallyAssert(s.size() == size);
         t7("ContainsKey            ", size, s, key, absent);
         t4("ContainsKey            ", size, s, key, size);
-        //ktest(s, size, key);
+        ktest(s, size, key);
         t4("ContainsKey            ", absentSize, s, absent, 0);
         t6("Get                    ", size, s, key, absent);
         t1("Get (present)          ", size, s, key, size, 8);
@@ -456,7 +1008,7 @@ public class FunctionalityTests {
         t3("Put (presized)         ", size, s, key, size);
         t1("Get (present)          ", size, s, key, size, 4);
         reallyAssert(s.size() == size);
-        //ittest(s, size);
+        ittest(s, size);
         rtest(s, size);
         reallyAssert(s.size() == 0);
         timer.start("Clear                  ", size);
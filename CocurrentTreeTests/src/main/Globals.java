@@ -36,6 +36,9 @@ public class Globals {
     
     public static final int GENERATOR_TYPE_DEFAULT = 0;
     public static final int GENERATOR_TYPE_CHAINS = 1;
+    public static final int GENERATOR_TYPE_DRIFT = 2;
+
+    public static final int DEFAULT_DRIFT_PERIOD_SECONDS = 10;
     
 //    public static final int GENERATOR_TYPE_BIASED = 2;
 }
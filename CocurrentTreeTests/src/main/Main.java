@@ -57,6 +57,10 @@ public class Main {
         factories.add(new ConcurrentHashMapFactory<Integer>());
         factories.add(new SkipTreeFactory<Integer>());
         factories.add(new BLTreeFactory<Integer>());
+        factories.add(new LongBLTreeFactory<Integer>());
+        factories.add(new BufferedBLTreeFactory<Integer>());
+        factories.add(new PartitionedBLTreeFactory<Integer>());
+        factories.add(new DurableBLTreeFactory<Integer>());
         factories.add(new StaticDictionary5Factory<Integer>());
         factories.add(new HashMapFactory<Integer>());
         factories.add(new SyncTreeMapFactory<Integer>());
@@ -67,6 +71,13 @@ public class Main {
 
     protected static abstract class TreeFactory<K> {
         public abstract BBSTInterface<K> newTree(final Object param);
+        /**
+         * For structures that need the key range up front; keys are drawn
+         * from [1, maxkey].
+         */
+        public BBSTInterface<K> newTree(final Object param, final int maxkey) {
+            return newTree(param);
+        }
         public abstract String getName();
     }
 
@@ -197,11 +208,46 @@ public class Main {
     @Exclude
     protected static class BLTreeFactory<K> extends TreeFactory<K> {
         public BBSTInterface<K> newTree(final Object param) {
-            return new BLTreeAdapter();
+            return new BLTreeAdapter(param == null ? "" : param.toString());
         }
         public String getName() { return "BLTree"; }
     }
 
+    @Exclude
+    protected static class LongBLTreeFactory<K> extends TreeFactory<K> {
+        public BBSTInterface<K> newTree(final Object param) {
+            return new LongBLTreeAdapter();
+        }
+        public String getName() { return "LongBLTree"; }
+    }
+
+    @Exclude
+    protected static class BufferedBLTreeFactory<K> extends TreeFactory<K> {
+        public BBSTInterface<K> newTree(final Object param) {
+            return new BufferedBLTreeAdapter(param == null ? "" : param.toString());
+        }
+        public String getName() { return "BufferedBLTree"; }
+    }
+
+    @Exclude
+    protected static class PartitionedBLTreeFactory<K> extends TreeFactory<K> {
+        public BBSTInterface<K> newTree(final Object param) {
+            return newTree(param, Integer.MAX_VALUE);
+        }
+        public BBSTInterface<K> newTree(final Object param, final int maxkey) {
+            return (BBSTInterface<K>) new PartitionedBLTreeAdapter(param == null ? "" : param.toString(), maxkey);
+        }
+        public String getName() { return "PartitionedBLTree"; }
+    }
+
+    @Exclude
+    protected static class DurableBLTreeFactory<K> extends TreeFactory<K> {
+        public BBSTInterface<K> newTree(final Object param) {
+            return new DurableBLTreeAdapter(param == null ? "" : param.toString());
+        }
+        public String getName() { return "DurableBLTree"; }
+    }
+
     @Exclude
     protected static class StaticDictionary5Factory<K> extends TreeFactory<K> {
         public BBSTInterface<K> newTree(final Object param) {
@@ -238,8 +284,8 @@ public class Main {
     protected final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
     public static final int RAW_NUMBER_OF_PROCESSORS = Runtime.getRuntime().availableProcessors();
     public static final int NUMBER_OF_PROCESSORS = RAW_NUMBER_OF_PROCESSORS == 8 ? 4 : RAW_NUMBER_OF_PROCESSORS; // override for hyperthreading on i7
-    public static final boolean PRINT_FREEMEM = false; // note: just a (rather inaccurate) estimate
-    private long startFreemem = 0;
+    static final int YIELD_PERIOD = 64; // operations a virtual worker runs between yields
+    private long footprintBaseline = 0;
 
     // variables for the experiment
     protected String machine;
@@ -354,6 +400,49 @@ public class Main {
         }
     }
         
+    /**
+     * Sends HOT_PERCENT of the keys to a hotspot of HOT_WIDTH_PERCENT of the
+     * key range and the rest uniformly over the whole range. The hotspot moves
+     * up through the key range and wraps around once every periodNanos, like
+     * time-ordered keys whose recent range receives most of the traffic. All
+     * generators of a trial share the start time, so they share the hotspot.
+     */
+    @Exclude
+    public final class DriftGenerator extends Generator<Integer> {
+        final static int HOT_PERCENT = 90;
+        final static int HOT_WIDTH_PERCENT = 1;
+        final static int CLOCK_MASK = 255;
+        final int maxKey;
+        final long startNanos, periodNanos;
+        final int hotWidth;
+        int hotStart, calls;
+        private final int rangeSize;
+
+        public DriftGenerator(final Random rng, final int maxKey, final int rangeSize, final long startNanos, final long periodNanos) {
+            super(rng);
+            if (maxKey < 1) throw new RuntimeException("maxKey must be >= 1");
+            this.maxKey = maxKey;
+            this.rangeSize = rangeSize;
+            this.startNanos = startNanos;
+            this.periodNanos = periodNanos;
+            this.hotWidth = Math.max(1, (int) ((long) maxKey * HOT_WIDTH_PERCENT / 100));
+        }
+
+        public Integer next() {
+            if ((calls++ & CLOCK_MASK) == 0) {
+                final long phase = (System.nanoTime() - startNanos) % periodNanos;
+                hotStart = (int) ((double) phase / periodNanos * maxKey);
+            }
+            if (rng.nextNatural(100) >= HOT_PERCENT) return rng.nextNatural(maxKey)+1;
+            return (hotStart + rng.nextNatural(hotWidth)) % maxKey + 1;
+        }
+
+        @Override
+        public Integer rangeTop(Integer rangeBottom) {
+            return rangeBottom + rangeSize;
+        }
+    }
+
     @Exclude
     public abstract class GeneratorFactory {
         abstract ArrayList<Generator> getGenerators(Experiment ex, java.util.Random experimentRng);
@@ -386,6 +475,21 @@ public class Main {
         String getName() { return "overlapLeftRightChain"; }
     }
 
+    @Exclude
+    final class DriftGeneratorFactory extends GeneratorFactory {
+        private final long periodNanos;
+        public DriftGeneratorFactory(int periodSeconds) { this.periodNanos = periodSeconds * 1000000000L; }
+        ArrayList<Generator> getGenerators(Experiment ex, java.util.Random rng) {
+            ArrayList<Generator> arrays = new ArrayList<Generator>(ex.nprocs);
+            final long startNanos = System.nanoTime();
+            for (int i=0;i<ex.nprocs;i++) {
+                arrays.add(new DriftGenerator(new Random(rng.nextInt()), ex.maxkey, ex.rangeSize, startNanos, periodNanos));
+            }
+            return arrays;
+        }
+        String getName() { return "drift"; }
+    }
+
     @Exclude
     public abstract class Worker<K extends Comparable<? super K>> extends Thread {
         public abstract int getOpCount();
@@ -409,6 +513,7 @@ public class Main {
         public abstract long getUserTime();
         public abstract long getWallTime();
         public abstract long getCPUTime();
+        public abstract long getAllocatedBytes();
     }
     
     @Exclude
@@ -432,7 +537,14 @@ public class Main {
         public long cpuTime;
         public long userTime;
         public long wallTime;
+        public long myStartAllocatedBytes;
+        public long allocatedBytes;
         public ArrayList<Worker> workers3; // ref to containing array [dirty technique :P...]
+        // virtual threads are not preempted, so with more workers than carriers
+        // the ones running would keep the others from ever starting; yielding
+        // every YIELD_PERIOD operations lets them in without a yield per operation
+        private final int yieldPeriod;
+        private int sinceYield;
 
         public TimedWorker(final long WORK_TIME,
                            final Generator gen,
@@ -452,6 +564,7 @@ public class Main {
             this.sharedStartUserTime = sharedStart;
             this.workers3 = workers;
             this.sharedStartWallTime = sharedStartWallTime;
+            this.yieldPeriod = switches.get("virtual") != 0 && ex.nprocs > carrierParallelism() ? YIELD_PERIOD : 0;
         }
 
         @Override
@@ -478,11 +591,16 @@ public class Main {
             myStartUserTime = bean.getThreadUserTime(id);
             myStartCPUTime = bean.getThreadCpuTime(id);
             myStartWallTime = System.nanoTime();
+            myStartAllocatedBytes = threadAllocatedBytes(bean, id);
             sharedStartUserTime.compareAndSet(0, myStartUserTime);
             sharedStartWallTime.compareAndSet(0, myStartWallTime);
             
             // perform operations while experiment's state is running
             while (ex.state == ExperimentState.RUNNING) {
+                if (yieldPeriod != 0 && ++sinceYield == yieldPeriod) {
+                    sinceYield = 0;
+                    Thread.yield();
+                }
                 final K key = gen.next();
                 final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
                 if (op < ratio.ins) {
@@ -508,6 +626,7 @@ public class Main {
             wallTime = System.nanoTime();
             userTime = bean.getThreadUserTime(id);
             cpuTime = bean.getThreadCpuTime(id);
+            allocatedBytes = myStartAllocatedBytes < 0 ? -1 : threadAllocatedBytes(bean, id) - myStartAllocatedBytes;
         }
         
         public K min(K key1, K key2)
@@ -542,7 +661,8 @@ public class Main {
         public long getMyStartWallTime() { return myStartWallTime; }
         public long getUserTime() { return userTime; }
         public long getWallTime() { return wallTime; }
-        public long getCPUTime() { return wallTime; }
+        public long getCPUTime() { return cpuTime; }
+        public long getAllocatedBytes() { return allocatedBytes; }
     }
     
     @Exclude
@@ -617,8 +737,10 @@ public class Main {
         System.gc();
         final long gcTimeStart = totalGarbageCollectionTimeMillis();
         
-        // run the trial
-        for (int i=0;i<ex.nprocs;i++) workers.get(i).start();
+        // run the trial; with -virtual each worker runs on a virtual thread of its own
+        final ArrayList<Thread> threads = new ArrayList<Thread>(ex.nprocs);
+        for (int i=0;i<ex.nprocs;i++) threads.add(switches.get("virtual") != 0 ? newVirtualThread(workers.get(i)) : workers.get(i));
+        for (int i=0;i<ex.nprocs;i++) threads.get(i).start();
         ex.state = ExperimentState.RUNNING;
         long localStartTime = System.nanoTime();
         try {
@@ -631,7 +753,7 @@ public class Main {
         ex.state = ExperimentState.STOPPED;
 
         // stop all threads and record how much GC has happened so far
-        try { for (int i=0;i<ex.nprocs;i++) workers.get(i).join(); }
+        try { for (int i=0;i<ex.nprocs;i++) threads.get(i).join(); }
         catch (InterruptedException e) { e.printStackTrace(); System.exit(-1); }
         final long gcTimeEnd = totalGarbageCollectionTimeMillis();
         
@@ -713,6 +835,14 @@ public class Main {
             }
             for (int i=workers.size();i<128;i++) out.print(",");
             
+            // a virtual thread has no CPU or user time of its own, and the JVM may
+            // not attribute allocations to threads; such columns are -1, not 0
+            boolean threadTimes = true, allocations = true;
+            for (Worker w : workers) {
+                if (w.getMyStartUserTime() < 0 || w.getMyStartCPUTime() < 0) threadTimes = false;
+                if (w.getAllocatedBytes() < 0) allocations = false;
+            }
+
             // compute minimum starting times for all threads
             long minStartUserTime = Long.MAX_VALUE;
             long minStartWallTime = Long.MAX_VALUE;
@@ -725,7 +855,8 @@ public class Main {
 
             // user start+end times per thread
             for (Worker w : workers) {
-                out.print(","+((w.getMyStartUserTime()-minStartUserTime)/1e9)+","+((w.getUserTime()-minStartUserTime)/1e9));
+                if (!threadTimes) out.print(",-1,-1");
+                else out.print(","+((w.getMyStartUserTime()-minStartUserTime)/1e9)+","+((w.getUserTime()-minStartUserTime)/1e9));
             }
             for (int i=workers.size();i<128;i++) out.print(",,");
             
@@ -737,7 +868,8 @@ public class Main {
 
             // CPU start+end times per thread
             for (Worker w : workers) {
-                out.print(","+((w.getMyStartCPUTime()-minStartCPUTime)/1e9)+","+((w.getCPUTime()-minStartCPUTime)/1e9));
+                if (!threadTimes) out.print(",-1,-1");
+                else out.print(","+((w.getMyStartCPUTime()-minStartCPUTime)/1e9)+","+((w.getCPUTime()-minStartCPUTime)/1e9));
             }
             for (int i=workers.size();i<128;i++) out.print(",,");
 
@@ -750,9 +882,9 @@ public class Main {
             }
             
             // total elapsed times
-            out.print(","+totalElapsedUserTime/1e9);
+            out.print(","+(threadTimes ? totalElapsedUserTime/1e9 : -1));
             out.print(","+totalElapsedWallTime/1e9);
-            out.print(","+totalElapsedCPUTime/1e9);
+            out.print(","+(threadTimes ? totalElapsedCPUTime/1e9 : -1));
             
             // garbage collection time and desired total elapsed time
             final double gcElapsedTime = (gcTimeEnd-gcTimeStart)/1e3;
@@ -760,14 +892,21 @@ public class Main {
             out.print(","+nseconds);
             
             // total time for all threads in trial
-            ex.totalThreadTime = (((totalElapsedCPUTime/1e9)+ 0 /*liveThreadsElapsedCPUTime*/)/ex.nprocs+gcElapsedTime);
+            ex.totalThreadTime = !threadTimes ? -1 : (((totalElapsedCPUTime/1e9)+ 0 /*liveThreadsElapsedCPUTime*/)/ex.nprocs+gcElapsedTime);
             out.print(","+ex.totalThreadTime);
             
-            if (PRINT_FREEMEM) {
-                System.gc();
-                final long freemem = Runtime.getRuntime().freeMemory();
-                out.print("," + freemem + "," + (startFreemem - freemem) + "," + (nnodes > 0 ? ((startFreemem - freemem)/nnodes) : 0));
-            }
+            // bytes allocated by the worker threads, in total and per second of the trial
+            long totalAllocatedBytes = 0;
+            for (Worker w : workers) totalAllocatedBytes += w.getAllocatedBytes();
+            if (!allocations) out.print(",-1,-1");
+            else out.print("," + totalAllocatedBytes + "," + (long) (totalAllocatedBytes / elapsed));
+            
+            // heap retained by the tree since it was created, plus its off-heap memory
+            if (switches.get("footprint") != 0) {
+                final long footprint = usedHeapAfterGC() - footprintBaseline + tree.getOffHeapBytes();
+                final int entries = tree instanceof BBSTInterface ? ((BBSTInterface) tree).size() : 0;
+                out.print("," + footprint + "," + (entries > 0 ? ((double) footprint / entries) : -1));
+            } else out.print(",-1,-1");
             
             out.println(); // finished line of output
         }
@@ -783,6 +922,37 @@ public class Main {
         return result;
     }   
     
+    private static long usedHeapAfterGC() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i=0;i<2;i++) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+    
+    /**
+     * Thread.ofVirtual().unstarted(task), through reflection so that the
+     * harness still builds for Java 8.
+     */
+    static Thread newVirtualThread(final Runnable task) {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (Thread) Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class).invoke(builder, task);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, this is Java " + System.getProperty("java.version"), ex);
+        }
+    }
+    
+    // the carrier threads of the default virtual thread scheduler
+    private static int carrierParallelism() {
+        final String parallelism = System.getProperty("jdk.virtualThreadScheduler.parallelism");
+        return parallelism != null ? Integer.parseInt(parallelism) : Runtime.getRuntime().availableProcessors();
+    }
+    
+    // -1 when the JVM cannot attribute allocations to threads
+    private static long threadAllocatedBytes(final ThreadMXBean bean, final long id) {
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(id);
+    }
+    
     @Exclude
     protected static final class Ratio {
         final double del, ins;
@@ -947,6 +1117,7 @@ public class Main {
         GeneratorFactory gen = null;
         if (switches.get("generator") == Globals.GENERATOR_TYPE_DEFAULT) gen = new RandomGeneratorFactory();
         else if (switches.get("generator") == Globals.GENERATOR_TYPE_CHAINS) gen = new LeftRightChainGeneratorFactory(Globals.DEFAULT_CHAIN_SIZE);
+        else if (switches.get("generator") == Globals.GENERATOR_TYPE_DRIFT) gen = new DriftGeneratorFactory((int) switches.get("driftPeriod"));
         else {
             System.out.println("Critical error with generator selection...");
             System.exit(-1);
@@ -1022,6 +1193,10 @@ public class Main {
         out.print(",gctime");
         out.print(",nseconds");
         out.print(",effectivetimeperthread");
+        out.print(",allocatedbytes");
+        out.print(",allocationrate");
+        out.print(",footprintbytes");
+        out.print(",bytesperentry");
         out.print(",restarted");
         out.println();
         
@@ -1036,12 +1211,6 @@ public class Main {
         final long startTime = System.nanoTime();
         int nCompleted = 0;
         
-        if (PRINT_FREEMEM) {
-            System.gc();
-            startFreemem = Runtime.getRuntime().freeMemory();
-            System.out.println(" free memory: " + startFreemem);
-        }        
-
         // perform the experiment
         java.util.Random rng = new java.util.Random((int) switches.get("seed"));
         for (Experiment ex : exp) {
@@ -1052,11 +1221,16 @@ public class Main {
             // and run the trial
             for (TreeFactory factory : factories) if (ex.alg.equals(factory.getName())) {
                 for (int trial=0;trial<ntrials;++trial) {
-                    BBSTInterface<Integer> tree = factory.newTree(ex.param);
+                    if (switches.get("footprint") != 0) footprintBaseline = usedHeapAfterGC();
+                    BBSTInterface<Integer> tree = factory.newTree(ex.param, ex.maxkey);
                     int initNodes = 0;
                     if (prefill) fillToSteadyState(experimentRng, tree, ex.ratio, ex.maxkey, false);
                     if (!runTrial(out, false, trial+1 == ntrials, factory.getName() + ex.param + "," + trial, initNodes, experimentRng, (AbstractAdapter) tree, ex)) System.exit(-1); // TODO: FIX THE HACKY CAST...
                     progress(stdout, tree, ++nCompleted, trial, factory.getName(), startTime, numberOfRuns, ex);
+                    if (tree instanceof AutoCloseable) {
+                        try { ((AutoCloseable) tree).close(); }
+                        catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+                    }
                 }
             }
         }
@@ -1091,8 +1265,11 @@ public class Main {
             System.out.println();
             System.out.println("Can also include switches after mandatory arguments:");
             System.out.println("\t-chains   to insert/remove chains of 100 sequential integers, starting at random values");
+            System.out.println("\t-drift[#] to send 90% of keys to a hotspot that sweeps the key range every # seconds (default " + Globals.DEFAULT_DRIFT_PERIOD_SECONDS + ")");
             System.out.println("\t-s###     to set the random seed (32-bit signed int; default is " + Globals.DEFAULT_SEED + ")");
             System.out.println("\t-prefill  to prefill structures to steady state with random operations");
+            System.out.println("\t-footprint to report the memory the tree retains per entry (forces full GCs between trials)");
+            System.out.println("\t-virtual  to run the workers as virtual threads, which yield every " + YIELD_PERIOD + " operations when they outnumber the carriers (needs Java 21)");
             System.out.println("\t-file-### to specify an output file to store results in");
             System.out.println("\t-param-## to provide a string parameter that will be passed to the tree factory");
             System.out.println("The following switches determine which operations are run (leftover % becomes search):");
@@ -1112,6 +1289,9 @@ public class Main {
         SwitchMap switches = new SwitchMap();
         switches.put("seed", (double) Globals.DEFAULT_SEED);
         switches.put("generator", (double) Globals.GENERATOR_TYPE_DEFAULT);
+        switches.put("footprint", 0.);
+        switches.put("virtual", 0.);
+        switches.put("driftPeriod", (double) Globals.DEFAULT_DRIFT_PERIOD_SECONDS);
         switches.put("keyRange", (double) Globals.DEFAULT_KEYRANGE);
         switches.put("ratio-range", (double) Globals.DEFAULT_RATION_RANGE);
         
@@ -1147,6 +1327,15 @@ public class Main {
             if (args[i].startsWith("-")) {
                 if (args[i].equals("-chains")) {
                     switches.put("generator", (double) Globals.GENERATOR_TYPE_CHAINS);
+                } else if (args[i].matches("-drift[0-9]*")) {
+                    switches.put("generator", (double) Globals.GENERATOR_TYPE_DRIFT);
+                    if (args[i].length() > "-drift".length()) {
+                        switches.put("driftPeriod", (double) Integer.parseInt(args[i].substring("-drift".length())));
+                        if (switches.get("driftPeriod") < 1) {
+                            System.out.println("The drift period must be at least one second");
+                            System.exit(-1);
+                        }
+                    }
                 } else if (args[i].matches("-seed[0-9]+")) {
                     try {
                         switches.put("seed", (double) Integer.parseInt(args[i].substring("-seed".length())));
@@ -1217,6 +1406,16 @@ public class Main {
                     filename = args[i].substring("-file-".length());
                 } else if (args[i].matches("-prefill")) {
                     prefill = true;
+                } else if (args[i].equals("-footprint")) {
+                    switches.put("footprint", 1.);
+                } else if (args[i].equals("-virtual")) {
+                    try {
+                        newVirtualThread(() -> {});
+                    } catch (UnsupportedOperationException ex) {
+                        System.out.println(ex.getMessage());
+                        System.exit(-1);
+                    }
+                    switches.put("virtual", 1.);
                 } else {
                     System.out.println("Unrecognized command-line switch: \"" + args[i] + "\"");
                     System.exit(-1);